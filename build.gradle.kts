@@ -13,6 +13,14 @@ repositories {
     jcenter()
 }
 
+sourceSets {
+    // JMH benchmarks
+    create("jmh") {
+        compileClasspath += sourceSets["main"].output + sourceSets["main"].compileClasspath
+        runtimeClasspath += sourceSets["main"].output + sourceSets["main"].runtimeClasspath
+    }
+}
+
 dependencies {
     // Logging
     compile("org.slf4j:slf4j-api:1.7.26")
@@ -27,12 +35,24 @@ dependencies {
     // JUnit Jupiter test framework
     testCompile("org.junit.jupiter:junit-jupiter-api:5.4.0")
     testRuntime("org.junit.jupiter:junit-jupiter-engine:5.4.0")
+
+    // JMH benchmarks
+    "jmhCompile"("org.openjdk.jmh:jmh-core:1.21")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.21")
 }
 
 val run by tasks.getting(JavaExec::class) {
     standardInput = System.`in`
 }
 
+val jmh by tasks.creating(JavaExec::class) {
+    description = "Runs JMH benchmarks, e.g. gradlew jmh -Pjmh=PointLookup"
+    classpath = sourceSets["jmh"].runtimeClasspath
+    main = "org.openjdk.jmh.Main"
+    // Report allocation rate along with the time
+    args = listOf("-prof", "gc") + (project.findProperty("jmh")?.toString()?.split(' ') ?: emptyList())
+}
+
 tasks {
     test {
         maxHeapSize = "128m"
@@ -0,0 +1,98 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Utility methods shared by the benchmarks.
+ */
+final class Benchmarks {
+    private static final int KEY_PREFIX = 0x7E7A7E7A;
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Create a 16-byte key, keys are ordered the same way as their indices.
+     */
+    @NotNull
+    static ByteBuffer key(final int i) {
+        // Key bytes are compared as signed values, so the sign bit of every byte is flipped
+        return ByteBuffer.allocate(Integer.BYTES * 4)
+                .putInt(0, KEY_PREFIX)
+                .putInt(Integer.BYTES * 3, i ^ 0x80808080);
+    }
+
+    /**
+     * Get the config keeping the SSTables of the directory as they are: MemTables are flushed only on close
+     * and level 0 is never compacted in the background.
+     */
+    @NotNull
+    static Config.Builder uncompacted() {
+        return Config.builder()
+                .flushThresholdInBytes(Long.MAX_VALUE)
+                .level0CompactionTrigger(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Fill the directory with the given number of SSTables, key {@code 2 * i} goes to table {@code i % tables}.
+     * Odd keys are left absent.
+     */
+    static void populate(
+            @NotNull final Path data,
+            final int tables,
+            final int keysPerTable,
+            final int valueSize) throws IOException {
+        final var value = ByteBuffer.allocate(valueSize);
+        final var keys = tables * keysPerTable;
+        for (int table = 0; table < tables; table++) {
+            // Closing the DAO flushes exactly one table
+            try (var dao = new DAOImpl(data.toFile(), uncompacted().build())) {
+                for (int i = table; i < keys; i += tables) {
+                    dao.upsert(key(2 * i), value);
+                }
+            }
+        }
+        checkTables(data, tables);
+    }
+
+    /**
+     * Make sure that the directory holds the given number of SSTables.
+     *
+     * @throws IllegalStateException if the number differs
+     */
+    static void checkTables(
+            @NotNull final Path data,
+            final int tables) throws IOException {
+        try (Stream<Path> files = Files.list(data)) {
+            final var count = files.filter(file -> file.getFileName().toString().endsWith(".db")).count();
+            if (count != tables) {
+                throw new IllegalStateException("Expected " + tables + " tables, found " + count);
+            }
+        }
+    }
+
+    static void copyDirectory(
+            @NotNull final Path from,
+            @NotNull final Path to) throws IOException {
+        try (Stream<Path> files = Files.list(from)) {
+            for (final var file : (Iterable<Path>) files::iterator) {
+                Files.copy(file, to.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    static void deleteRecursively(@NotNull final Path path) throws IOException {
+        try (Stream<Path> files = Files.walk(path)) {
+            files.sorted(Comparator.reverseOrder())
+                    .forEach(file -> file.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package ru.mail.polis.vaddya;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full compaction of N SSTables, every invocation compacts a fresh copy of the same tables.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+public class CompactionBenchmark {
+    private static final int KEYS = 200_000;
+    private static final int VALUE_SIZE = 100;
+
+    @Param({"2", "10", "50"})
+    private int tables;
+
+    @Param({"1", "4"})
+    private int subcompactions;
+
+    private Path template;
+    private Path data;
+    private DAOImpl dao;
+
+    @Setup(Level.Trial)
+    public void setUpTemplate() throws IOException {
+        template = Files.createTempDirectory("compaction");
+        Benchmarks.populate(template, tables, KEYS / tables, VALUE_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTemplate() throws IOException {
+        Benchmarks.deleteRecursively(template);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        data = Files.createTempDirectory("compaction");
+        Benchmarks.copyDirectory(template, data);
+        dao = new DAOImpl(data.toFile(), Benchmarks.uncompacted()
+                .maxSubcompactions(subcompactions)
+                .build());
+        Benchmarks.checkTables(data, tables);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        dao.close();
+        Benchmarks.deleteRecursively(data);
+    }
+
+    @Benchmark
+    public void compact() throws IOException {
+        dao.compact();
+    }
+}
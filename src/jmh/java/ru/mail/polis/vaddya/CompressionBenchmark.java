@@ -0,0 +1,118 @@
+package ru.mail.polis.vaddya;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SSTable write time, point lookup latency and scan time for every block codec.
+ * The size of the table on disk is logged once the trial is set up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+public class CompressionBenchmark {
+    private static final Logger LOG = LoggerFactory.getLogger(CompressionBenchmark.class);
+    private static final int KEYS = 100_000;
+    private static final int SCAN_LENGTH = 1_000;
+
+    @Param({"NONE", "DEFLATE", "LZ4"})
+    private String compression;
+
+    private Config config;
+    private MemTable memTable;
+    private Path data;
+    private Path output;
+    private DAOImpl dao;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        config = Config.builder()
+                .compression(Config.Compression.valueOf(compression))
+                // Keep most of the blocks out of the cache, so that lookups decompress them
+                .blockCacheSizeInBytes(1024 * 1024)
+                .build();
+        memTable = new MemTable();
+        for (int i = 0; i < KEYS; i++) {
+            memTable.put(TableEntry.upsert(Benchmarks.key(i), value(i)));
+        }
+
+        data = Files.createTempDirectory("compression");
+        try (var channel = FileChannel.open(data.resolve("table.db"), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            Table.flushEntries(memTable.cursor(ByteBufferUtils.emptyBuffer()), KEYS, 0, config, channel,
+                    data.resolve("table.index.tmp"));
+        }
+        LOG.info("Size on disk with {} compression: {} bytes", compression, Files.size(data.resolve("table.db")));
+        dao = new DAOImpl(data.toFile(), config);
+        output = Files.createTempFile("compression", ".tmp");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        Benchmarks.deleteRecursively(data);
+        Files.delete(output);
+    }
+
+    /**
+     * JSON-like value, compressible the way real documents are.
+     */
+    private static ByteBuffer value(final int i) {
+        final var json = "{\"id\":" + i
+                + ",\"status\":\"" + (i % 3 == 0 ? "NEW" : "PAID")
+                + "\",\"amount\":" + (i * 37 % 1000)
+                + ",\"currency\":\"RUB\",\"comment\":\"order " + i % 100 + "\"}";
+        return ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void write() throws IOException {
+        try (var channel = FileChannel.open(output, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Table.flushEntries(memTable.cursor(ByteBufferUtils.emptyBuffer()), KEYS, 0, config, channel,
+                    data.resolve("output.index.tmp"));
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer get() {
+        return dao.get(Benchmarks.key(ThreadLocalRandom.current().nextInt(KEYS)));
+    }
+
+    @Benchmark
+    public void scan(final Blackhole blackhole) {
+        final var from = Benchmarks.key(ThreadLocalRandom.current().nextInt(KEYS - SCAN_LENGTH));
+        final var iterator = dao.iterator(from);
+        for (int i = 0; i < SCAN_LENGTH; i++) {
+            blackhole.consume(iterator.next());
+        }
+    }
+}
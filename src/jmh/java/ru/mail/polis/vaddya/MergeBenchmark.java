@@ -0,0 +1,91 @@
+package ru.mail.polis.vaddya;
+
+import com.google.common.collect.Iterators;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.mail.polis.Iters;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Full merge of the given number of sources ordered from the oldest one with overwritten and removed keys,
+ * the tournament tree cursor compared with the stack of Guava and {@link Iters} iterators it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+public class MergeBenchmark {
+    private static final int KEYS = 200_000;
+    private static final int VALUE_SIZE = 16;
+
+    @Param({"2", "10", "100"})
+    private int sources;
+
+    private List<MemTable> tables;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        tables = new ArrayList<>(sources);
+        for (int i = 0; i < sources; i++) {
+            tables.add(new MemTable());
+        }
+        var ts = 0L;
+        for (int i = 0; i < KEYS; i++) {
+            final var key = Benchmarks.key(i);
+            final var source = i % sources;
+            tables.get(source).put(TableEntry.from(key, ByteBuffer.allocate(VALUE_SIZE), false, ++ts));
+            // Some of the keys are overwritten or removed in the next source, the newer one
+            if (source + 1 == sources) {
+                continue;
+            }
+            if (i % 4 == 0) {
+                tables.get(source + 1).put(TableEntry.from(key, ByteBuffer.allocate(VALUE_SIZE), false, ++ts));
+            } else if (i % 10 == 1) {
+                tables.get(source + 1).put(TableEntry.from(key, null, true, ++ts));
+            }
+        }
+    }
+
+    @Benchmark
+    public void tournament(final Blackhole blackhole) {
+        final var cursors = tables.stream()
+                .map(table -> table.cursor(ByteBufferUtils.emptyBuffer()))
+                .collect(toList());
+        final var merged = new MergingCursor(cursors, true, false);
+        while (merged.advance()) {
+            blackhole.consume(merged.valueView());
+        }
+    }
+
+    @Benchmark
+    public void guava(final Blackhole blackhole) {
+        final var iterators = tables.stream()
+                .map(table -> table.iterator(ByteBufferUtils.emptyBuffer()))
+                .collect(toList());
+        final var merged = Iterators.filter(
+                Iters.collapseEquals(Iterators.mergeSorted(iterators, TableEntry.COMPARATOR), TableEntry::getKey),
+                e -> !e.hasTombstone());
+        while (merged.hasNext()) {
+            blackhole.consume(merged.next().getValue());
+        }
+    }
+}
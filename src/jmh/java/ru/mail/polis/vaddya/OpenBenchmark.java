@@ -0,0 +1,63 @@
+package ru.mail.polis.vaddya;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to open the DAO over a directory with N SSTables and close it without writes.
+ * Files stay in the page cache between invocations, so disk reads are not accounted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+public class OpenBenchmark {
+    private static final int KEYS_PER_TABLE = 100;
+    private static final int VALUE_SIZE = 100;
+
+    @Param({"10", "100", "1000"})
+    private int tables;
+
+    private Path data;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        data = Files.createTempDirectory("open");
+        Benchmarks.populate(data, tables, KEYS_PER_TABLE, VALUE_SIZE);
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkTables() throws IOException {
+        Benchmarks.checkTables(data, tables);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Benchmarks.deleteRecursively(data);
+    }
+
+    @Benchmark
+    public DAOImpl open() throws IOException {
+        final var dao = new DAOImpl(data.toFile(), Benchmarks.uncompacted().build());
+        dao.close();
+        return dao;
+    }
+}
@@ -0,0 +1,108 @@
+package ru.mail.polis.vaddya;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mail.polis.Record;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point lookups of present and absent keys, compared with the lookup via merged iterators
+ * ({@code DAO.get} default implementation).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+public class PointLookupBenchmark {
+    private static final int KEYS_PER_TABLE = 1_000;
+    private static final int VALUE_SIZE = 100;
+
+    @Param({"1", "10", "100"})
+    private int tables;
+
+    private Path data;
+    private DAOImpl dao;
+    private ByteBuffer[] keys;
+    private ByteBuffer[] absentKeys;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        data = Files.createTempDirectory("lookup");
+        Benchmarks.populate(data, tables, KEYS_PER_TABLE, VALUE_SIZE);
+        keys = new ByteBuffer[tables * KEYS_PER_TABLE];
+        absentKeys = new ByteBuffer[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = Benchmarks.key(2 * i);
+            absentKeys[i] = Benchmarks.key(2 * i + 1);
+        }
+        dao = new DAOImpl(data.toFile(), Benchmarks.uncompacted().build());
+        Benchmarks.checkTables(data, tables);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        Benchmarks.deleteRecursively(data);
+    }
+
+    @Benchmark
+    public ByteBuffer getHit() {
+        return dao.get(keys[nextIndex()]);
+    }
+
+    @Benchmark
+    public ByteBuffer iteratorHit() {
+        return iteratorGet(keys[nextIndex()]);
+    }
+
+    @Benchmark
+    public ByteBuffer getMiss() {
+        try {
+            return dao.get(absentKeys[nextIndex()]);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer iteratorMiss() {
+        return iteratorGet(absentKeys[nextIndex()]);
+    }
+
+    private ByteBuffer iteratorGet(final ByteBuffer key) {
+        final Iterator<Record> iterator = dao.iterator(key);
+        if (iterator.hasNext()) {
+            final var record = iterator.next();
+            if (record.getKey().equals(key)) {
+                return record.getValue();
+            }
+        }
+        return null;
+    }
+
+    private int nextIndex() {
+        next = next + 1 == keys.length ? 0 : next + 1;
+        return next;
+    }
+}
@@ -0,0 +1,85 @@
+package ru.mail.polis.vaddya;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Range scans of the given length over keys spread across several SSTables,
+ * through the record iterator and through the cursor reusing its views.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+public class RangeBenchmark {
+    private static final int KEYS_PER_TABLE = 20_000;
+    private static final int VALUE_SIZE = 100;
+
+    @Param({"10"})
+    private int tables;
+
+    @Param({"10", "100", "10000"})
+    private int length;
+
+    private Path data;
+    private DAOImpl dao;
+    private int keys;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        data = Files.createTempDirectory("range");
+        Benchmarks.populate(data, tables, KEYS_PER_TABLE, VALUE_SIZE);
+        keys = tables * KEYS_PER_TABLE;
+        dao = new DAOImpl(data.toFile(), Benchmarks.uncompacted().build());
+        Benchmarks.checkTables(data, tables);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        Benchmarks.deleteRecursively(data);
+    }
+
+    @Benchmark
+    public void range(final Blackhole blackhole) throws IOException {
+        final var start = ThreadLocalRandom.current().nextInt(keys - length);
+        final ByteBuffer from = Benchmarks.key(2 * start);
+        final ByteBuffer to = Benchmarks.key(2 * (start + length));
+        final var iterator = dao.range(from, to);
+        while (iterator.hasNext()) {
+            blackhole.consume(iterator.next());
+        }
+    }
+
+    @Benchmark
+    public void cursor(final Blackhole blackhole) {
+        final var start = ThreadLocalRandom.current().nextInt(keys - length);
+        final ByteBuffer from = Benchmarks.key(2 * start);
+        final ByteBuffer to = Benchmarks.key(2 * (start + length));
+        final var cursor = dao.cursor(from, to);
+        while (cursor.advance()) {
+            blackhole.consume(cursor.valueView());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package ru.mail.polis.vaddya;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timestamp generation under contention, the lock-free hybrid clock compared with a clock
+ * guarded by a global monitor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimestampBenchmark {
+    @Param({"HYBRID", "SYNCHRONIZED"})
+    private String clock;
+
+    private static int counter;
+    private static long lastMillis;
+
+    private boolean hybrid;
+
+    @Setup
+    public void setUp() {
+        hybrid = "HYBRID".equals(clock);
+    }
+
+    private long next() {
+        return hybrid ? TimeUtils.currentTimeNanos() : synchronizedTimeNanos();
+    }
+
+    private static long synchronizedTimeNanos() {
+        synchronized (TimestampBenchmark.class) {
+            final var millis = System.currentTimeMillis();
+            if (lastMillis != millis) {
+                lastMillis = millis;
+                counter = 0;
+            }
+            return lastMillis * 1_000_000 + counter++;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long threads1() {
+        return next();
+    }
+
+    @Benchmark
+    @Threads(2)
+    public long threads2() {
+        return next();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long threads4() {
+        return next();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long threads8() {
+        return next();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long threads16() {
+        return next();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public long threads32() {
+        return next();
+    }
+}
@@ -0,0 +1,86 @@
+package ru.mail.polis.vaddya;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mail.polis.WriteBatch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upsert throughput including background flushes, every iteration starts with an empty directory.
+ * Upserts are applied either one by one or in write batches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx128m")
+public class UpsertBenchmark {
+    private static final int KEYS = 1 << 20;
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"16", "1024", "65536"})
+    private int valueSize;
+
+    private Path data;
+    private DAOImpl dao;
+    private ByteBuffer[] keys;
+    private ByteBuffer value;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUpKeys() {
+        keys = new ByteBuffer[KEYS];
+        for (int i = 0; i < keys.length; i++) {
+            // Scatter the keys, so that they are not inserted in order
+            keys[i] = Benchmarks.key(Integer.reverse(i));
+        }
+        value = ByteBuffer.allocate(valueSize);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        data = Files.createTempDirectory("upsert");
+        dao = new DAOImpl(data.toFile(), Config.builder().build());
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        dao.close();
+        Benchmarks.deleteRecursively(data);
+    }
+
+    @Benchmark
+    public void upsert() throws IOException {
+        next = next + 1 == keys.length ? 0 : next + 1;
+        dao.upsert(keys[next], value);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void batch() throws IOException {
+        final var batch = new WriteBatch();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            next = next + 1 == keys.length ? 0 : next + 1;
+            batch.upsert(keys[next], value);
+        }
+        dao.apply(batch);
+    }
+}
@@ -0,0 +1,103 @@
+package ru.mail.polis.vaddya;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write timestamps taken and published under contention, the lock-free watermark compared with
+ * the writes in progress tracked under a global monitor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WatermarkBenchmark {
+    @Param({"LOCK_FREE", "SYNCHRONIZED"})
+    private String watermark;
+
+    private final Deque<Long> inProgress = new ArrayDeque<>();
+    private long lastIssued;
+    private volatile long visible;
+
+    private Watermark lockFree;
+
+    @Setup
+    public void setUp() {
+        lockFree = "LOCK_FREE".equals(watermark) ? new Watermark() : null;
+    }
+
+    private long write() {
+        if (lockFree != null) {
+            final var sequence = lockFree.begin(1);
+            lockFree.publish(sequence);
+            return lockFree.visible();
+        }
+        final var ts = synchronizedBegin();
+        synchronizedPublish(ts);
+        return visible;
+    }
+
+    private synchronized long synchronizedBegin() {
+        final var ts = TimeUtils.currentTimeNanos();
+        inProgress.addLast(ts);
+        lastIssued = ts;
+        return ts;
+    }
+
+    private synchronized void synchronizedPublish(final long ts) {
+        inProgress.remove(ts);
+        visible = inProgress.isEmpty() ? lastIssued : inProgress.getFirst() - 1;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long threads1() {
+        return write();
+    }
+
+    @Benchmark
+    @Threads(2)
+    public long threads2() {
+        return write();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long threads4() {
+        return write();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long threads8() {
+        return write();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public long threads16() {
+        return write();
+    }
+
+    @Benchmark
+    @Threads(32)
+    public long threads32() {
+        return write();
+    }
+}
@@ -17,6 +17,7 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.vaddya.Config;
 import ru.mail.polis.vaddya.DAOImpl;
 
 import java.io.File;
@@ -54,6 +55,11 @@ public final class DAOFactory {
             throw new IllegalArgumentException("Path is not a directory: " + data);
         }
 
-        return new DAOImpl(data, MAX_HEAP / 32);
+        // MemTables are kept off heap, so that they can grow larger than a small share of the heap
+        final Config config = Config.builder()
+                .offHeapMemTable(true)
+                .flushThresholdInBytes(MAX_HEAP / 8)
+                .build();
+        return new DAOImpl(data, config);
     }
 }
@@ -0,0 +1,72 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Upserts and removals to be applied together by {@link DAO#apply(WriteBatch)}.
+ * Operations are applied in the order they were added, so the last one wins for a repeated key.
+ * Buffers are not copied and should not be modified until the batch is applied.
+ */
+public final class WriteBatch {
+    private final List<ByteBuffer> keys = new ArrayList<>();
+    /**
+     * Values of the operations, null for removals.
+     */
+    private final List<ByteBuffer> values = new ArrayList<>();
+
+    /**
+     * Add insertion or update of the value by given key.
+     */
+    @NotNull
+    public WriteBatch upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) {
+        keys.add(key.duplicate().asReadOnlyBuffer());
+        values.add(value.duplicate().asReadOnlyBuffer());
+        return this;
+    }
+
+    /**
+     * Add removal of the value by given key.
+     */
+    @NotNull
+    public WriteBatch remove(@NotNull final ByteBuffer key) {
+        keys.add(key.duplicate().asReadOnlyBuffer());
+        values.add(null);
+        return this;
+    }
+
+    /**
+     * Get the number of operations.
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    /**
+     * Get the key of the operation with the given index.
+     */
+    @NotNull
+    public ByteBuffer key(final int index) {
+        return keys.get(index);
+    }
+
+    /**
+     * Get the value of the operation with the given index.
+     *
+     * @return the value or null if the operation is a removal
+     */
+    @Nullable
+    public ByteBuffer value(final int index) {
+        return values.get(index);
+    }
+}
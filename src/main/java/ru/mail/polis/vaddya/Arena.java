@@ -0,0 +1,112 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Off-heap memory allocated from direct slabs by bumping a pointer, safe for concurrent use.
+ *
+ * <p>Allocations are addressed by references combining the slab index (high int) and the offset
+ * within the slab (low int), both aligned to 8 bytes. Memory is never reused, all the slabs are freed
+ * at once by {@link #free()}. Allocations larger than a quarter of a slab get a slab of their own.
+ */
+final class Arena {
+    static final int SLAB_SIZE = 1024 * 1024;
+    private static final int ALIGNMENT = Long.BYTES;
+
+    /**
+     * Slabs by index, replaced with a larger copy under the lock when full.
+     */
+    private volatile ByteBuffer[] slabs = new ByteBuffer[16];
+    private int slabCount;
+    private volatile Slab current;
+
+    private static final class Slab {
+        final int index;
+        /**
+         * Start of the free space, might exceed the slab size once the slab is exhausted.
+         */
+        final AtomicInteger position = new AtomicInteger();
+
+        Slab(final int index) {
+            this.index = index;
+        }
+    }
+
+    Arena() {
+        this.current = new Slab(addSlab(ByteBuffer.allocateDirect(SLAB_SIZE)));
+    }
+
+    /**
+     * Allocate zeroed memory of at least the given size.
+     *
+     * @return reference to the allocated memory
+     */
+    long allocate(final int size) {
+        final var aligned = (size + ALIGNMENT - 1) & -ALIGNMENT;
+        if (aligned > SLAB_SIZE / 4) {
+            return reference(addSlab(ByteBuffer.allocateDirect(aligned)), 0);
+        }
+
+        while (true) {
+            final var slab = current;
+            final var start = slab.position.getAndAdd(aligned);
+            if (start >= 0 && start + aligned <= SLAB_SIZE) {
+                return reference(slab.index, start);
+            }
+            // Only one of the threads which exhausted the slab replaces it
+            synchronized (this) {
+                if (current == slab) {
+                    current = new Slab(addSlab(ByteBuffer.allocateDirect(SLAB_SIZE)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the slab holding the referenced memory.
+     */
+    @NotNull
+    ByteBuffer slab(final long reference) {
+        return slabs[(int) (reference >>> 32)];
+    }
+
+    /**
+     * Get the offset of the referenced memory within its slab.
+     */
+    static int offset(final long reference) {
+        return (int) reference;
+    }
+
+    private static long reference(
+            final int slab,
+            final int offset) {
+        return (long) slab << 32 | offset;
+    }
+
+    /**
+     * Free the slabs right away instead of waiting for the garbage collector.
+     * Neither the arena nor the memory allocated from it may be accessed afterwards.
+     */
+    synchronized void free() {
+        final var freed = slabs;
+        for (int i = 0; i < slabCount; i++) {
+            ByteBufferUtils.unmap(freed[i]);
+            freed[i] = null;
+        }
+    }
+
+    private synchronized int addSlab(@NotNull final ByteBuffer slab) {
+        if (slabCount == slabs.length) {
+            slabs = Arrays.copyOf(slabs, slabCount * 2);
+        }
+        // Slab is published by the volatile write before any reference to it escapes
+        final var updated = slabs;
+        updated[slabCount] = slab;
+        slabs = updated;
+        return slabCount++;
+    }
+}
@@ -0,0 +1,59 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Block of sorted table entries, the unit of SSTable reads and caching.
+ */
+interface Block {
+    /**
+     * Read block from the buffer holding exactly one block.
+     *
+     * @param prefixKeys whether keys are delta-encoded (see {@link PrefixBlock})
+     *                   or stored in full (see {@link DenseBlock})
+     * @throws IllegalArgumentException if block format is invalid
+     */
+    @NotNull
+    static Block from(
+            @NotNull final ByteBuffer buffer,
+            final boolean prefixKeys) {
+        return prefixKeys ? PrefixBlock.from(buffer) : DenseBlock.from(buffer);
+    }
+
+    /**
+     * Get iterator over the block entries starting from the given key.
+     */
+    @NotNull
+    Iterator<TableEntry> iterator(@NotNull ByteBuffer from);
+
+    /**
+     * Get cursor over the block entries starting from the given key.
+     */
+    @NotNull
+    Cursor cursor(@NotNull ByteBuffer from);
+
+    /**
+     * Get iterator over the block entries with keys less than the given one in descending order.
+     *
+     * @param to upper bound (exclusive) or null to start from the last entry
+     */
+    @NotNull
+    Iterator<TableEntry> descendingIterator(@Nullable ByteBuffer to);
+
+    /**
+     * Get the entry with exactly the given key.
+     *
+     * @return the entry or null if the block has no entry with such key
+     */
+    @Nullable
+    TableEntry get(@NotNull ByteBuffer key);
+
+    /**
+     * Get the size of the block in bytes, used to weigh it in the block cache.
+     */
+    int sizeInBytes();
+}
@@ -0,0 +1,121 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Accumulates table entries into a block in the format read by {@link PrefixBlock}.
+ * The underlying buffer is reused between blocks and grows for entries larger than the block size.
+ */
+final class BlockBuilder {
+    private final int blockSizeInBytes;
+    private final int restartInterval;
+    private ByteBuffer entries;
+    private int[] restarts = new int[16];
+    private int restartCount;
+    private int count;
+    private byte[] previousKey = new byte[64];
+    private int previousKeySize;
+
+    BlockBuilder(
+            final int blockSizeInBytes,
+            final int restartInterval) {
+        this.blockSizeInBytes = blockSizeInBytes;
+        this.restartInterval = restartInterval;
+        this.entries = ByteBuffer.allocate(blockSizeInBytes);
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Check whether the block reached its target size and should be finished.
+     */
+    boolean isFull() {
+        return entries.position() + Integer.BYTES * (restartCount + 1) >= blockSizeInBytes;
+    }
+
+    /**
+     * Append the current entry of the cursor, its key should be greater than the key of the previous entry
+     * in the block. The entry is copied, so the cursor can be advanced right away.
+     */
+    void add(@NotNull final Cursor entry) {
+        final var key = entry.keyView();
+        var shared = 0;
+        if (count % restartInterval == 0) {
+            if (restartCount == restarts.length) {
+                final var grown = new int[restarts.length * 2];
+                System.arraycopy(restarts, 0, grown, 0, restartCount);
+                restarts = grown;
+            }
+            restarts[restartCount++] = entries.position();
+        } else {
+            shared = sharedPrefix(key);
+        }
+        final var unshared = key.remaining() - shared;
+
+        final var value = entry.valueView();
+        final var valueSize = entry.hasTombstone() ? 0 : Integer.BYTES + value.remaining();
+        ensureCapacity(Integer.BYTES * 2 + unshared + Long.BYTES + valueSize);
+        entries.putInt(shared)
+                .putInt(unshared)
+                .put(key.duplicate().position(key.position() + shared));
+        if (entry.hasTombstone()) {
+            entries.putLong(-entry.ts());
+        } else {
+            entries.putLong(entry.ts())
+                    .putInt(value.remaining())
+                    .put(value.duplicate());
+        }
+
+        // Shared prefix is already in place, so only the rest of the key is copied
+        if (key.remaining() > previousKey.length) {
+            previousKey = Arrays.copyOf(previousKey, Math.max(key.remaining(), previousKey.length * 2));
+        }
+        key.duplicate().position(key.position() + shared).get(previousKey, shared, unshared);
+        previousKeySize = key.remaining();
+        count++;
+    }
+
+    /**
+     * Finish the block and reset the builder.
+     *
+     * @return buffer with the block ready to be written, valid until the next call to {@link #add(Cursor)}
+     */
+    @NotNull
+    ByteBuffer finish() {
+        ensureCapacity(Integer.BYTES * (restartCount + 1));
+        for (int i = 0; i < restartCount; i++) {
+            entries.putInt(restarts[i]);
+        }
+        entries.putInt(restartCount);
+        count = 0;
+        restartCount = 0;
+        previousKeySize = 0;
+        final var block = entries.flip().duplicate();
+        entries.clear();
+        return block;
+    }
+
+    private int sharedPrefix(@NotNull final ByteBuffer key) {
+        final var limit = Math.min(previousKeySize, key.remaining());
+        final var offset = key.position();
+        var shared = 0;
+        while (shared < limit && previousKey[shared] == key.get(offset + shared)) {
+            shared++;
+        }
+        return shared;
+    }
+
+    private void ensureCapacity(final int bytes) {
+        if (entries.remaining() >= bytes) {
+            return;
+        }
+        final var grown = ByteBuffer.allocate(Math.max(entries.capacity() * 2, entries.position() + bytes));
+        grown.put(entries.flip());
+        entries = grown;
+    }
+}
@@ -0,0 +1,99 @@
+package ru.mail.polis.vaddya;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Bounded cache of parsed and verified SSTable blocks shared by all the tables of a DAO.
+ * Least recently used blocks are evicted once the total size of cached blocks exceeds the capacity.
+ */
+final class BlockCache {
+    private final AtomicLong tableIds = new AtomicLong();
+    @Nullable
+    private final Cache<Key, Block> cache;
+
+    /**
+     * Create a cache holding at most the given number of bytes, zero disables caching.
+     */
+    BlockCache(final long capacityInBytes) {
+        if (capacityInBytes <= 0) {
+            this.cache = null;
+        } else {
+            this.cache = CacheBuilder.newBuilder()
+                    .maximumWeight(capacityInBytes)
+                    .weigher((Key key, Block block) -> block.sizeInBytes())
+                    .build();
+        }
+    }
+
+    /**
+     * Get the unique identifier for a newly opened table, used to tell its blocks apart.
+     */
+    long newTableId() {
+        return tableIds.incrementAndGet();
+    }
+
+    /**
+     * Get the block from the cache or read it with the loader if absent.
+     */
+    @NotNull
+    Block get(
+            final long tableId,
+            final int blockIndex,
+            @NotNull final Supplier<Block> loader) {
+        if (cache == null) {
+            return loader.get();
+        }
+
+        final var key = new Key(tableId, blockIndex);
+        var block = cache.getIfPresent(key);
+        if (block == null) {
+            // Concurrent readers might load the same block twice, which is cheaper than locking
+            block = loader.get();
+            cache.put(key, block);
+        }
+        return block;
+    }
+
+    /**
+     * Drop the cached blocks of the table, should be called once the table is closed.
+     */
+    void invalidate(final long tableId) {
+        if (cache != null) {
+            cache.asMap().keySet().removeIf(key -> key.tableId == tableId);
+        }
+    }
+
+    private static final class Key {
+        private final long tableId;
+        private final int blockIndex;
+
+        Key(final long tableId,
+            final int blockIndex) {
+            this.tableId = tableId;
+            this.blockIndex = blockIndex;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final var key = (Key) o;
+            return tableId == key.tableId && blockIndex == key.blockIndex;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(tableId) * 31 + blockIndex;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compression codec applied to SSTable blocks, identified in the table footer by {@link #id()}.
+ */
+interface BlockCodec {
+    /**
+     * Get the codec identifier written to the footer, zero is reserved for uncompressed tables.
+     */
+    int id();
+
+    /**
+     * Compress the remaining bytes of the buffer.
+     *
+     * @return compressed bytes, might be larger than the input
+     */
+    @NotNull
+    ByteBuffer compress(@NotNull ByteBuffer raw);
+
+    /**
+     * Decompress the remaining bytes of the buffer.
+     *
+     * @param rawSize size of the data before compression
+     * @throws IllegalArgumentException if data is corrupted
+     */
+    @NotNull
+    ByteBuffer decompress(
+            @NotNull ByteBuffer compressed,
+            int rawSize);
+
+    /**
+     * Get the codec for the configured compression.
+     *
+     * @return the codec or null if blocks are not compressed
+     */
+    @Nullable
+    static BlockCodec of(@NotNull final Config.Compression compression) {
+        switch (compression) {
+            case NONE:
+                return null;
+            case DEFLATE:
+                return DeflateCodec.INSTANCE;
+            case LZ4:
+                return Lz4Codec.INSTANCE;
+            default:
+                throw new IllegalArgumentException("Unknown compression: " + compression);
+        }
+    }
+
+    /**
+     * Get the codec by the identifier read from the footer.
+     *
+     * @return the codec or null if blocks are not compressed
+     * @throws IllegalArgumentException if there is no codec with such identifier
+     */
+    @Nullable
+    static BlockCodec forId(final int id) {
+        switch (id) {
+            case 0:
+                return null;
+            case DeflateCodec.ID:
+                return DeflateCodec.INSTANCE;
+            case Lz4Codec.ID:
+                return Lz4Codec.INSTANCE;
+            default:
+                throw new IllegalArgumentException("Unknown codec: " + id);
+        }
+    }
+}
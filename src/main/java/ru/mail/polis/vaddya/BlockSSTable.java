@@ -0,0 +1,528 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+/**
+ * SSTable split into blocks of sorted entries, located with a sparse index of the first block keys.
+ * Only the index and the Bloom filter are probed in place, blocks are read through the shared {@link BlockCache}.
+ */
+final class BlockSSTable implements Table {
+    static final int MAGIC = 0xCAFEB10C;
+    static final int FLAG_CHECKSUMS = 1;
+    /**
+     * Set for blocks with delta-encoded keys, see {@link PrefixBlock}, otherwise blocks are {@link DenseBlock}.
+     */
+    static final int FLAG_PREFIX_KEYS = 2;
+    /**
+     * Set for tables storing their generation (represented by long value) right before the footer.
+     */
+    static final int FLAG_GENERATION = 4;
+    /**
+     * Set for tables storing the greatest timestamp of their entries (represented by long value)
+     * right before the generation.
+     */
+    static final int FLAG_MAX_TIMESTAMP = 8;
+    /**
+     * Set for tables with block offsets and index entry offsets represented by long values, otherwise by int ones.
+     */
+    static final int FLAG_LONG_OFFSETS = 16;
+    /**
+     * Set for tables storing the number of their tombstones (represented by int value) right before
+     * the greatest timestamp.
+     */
+    static final int FLAG_TOMBSTONE_COUNT = 32;
+    /**
+     * Position of the block codec id within the flags.
+     */
+    static final int CODEC_SHIFT = 8;
+    /**
+     * Bloom filter size, hash count, block count, entries count, flags and magic.
+     */
+    static final int FOOTER_SIZE = Integer.BYTES * 6;
+
+    private final long id;
+    private final MappedFile file;
+    private final int blockCount;
+    private final int entriesCount;
+    private final int tombstoneCount;
+    private final long generation;
+    private final long maxTimestamp;
+    private final long indexOffsetsStart;
+    private final int offsetSize;
+    private final boolean checksums;
+    private final boolean prefixKeys;
+    @Nullable
+    private final BlockCodec codec;
+    private final BloomFilter bloomFilter;
+    private final BlockCache blockCache;
+
+    private BlockSSTable(
+            @NotNull final MappedFile file,
+            final int blockCount,
+            final int entriesCount,
+            final int tombstoneCount,
+            final long generation,
+            final long maxTimestamp,
+            final long indexOffsetsStart,
+            final int flags,
+            @Nullable final BlockCodec codec,
+            @NotNull final BloomFilter bloomFilter,
+            @NotNull final BlockCache blockCache) {
+        this.id = blockCache.newTableId();
+        this.file = file;
+        this.blockCount = blockCount;
+        this.entriesCount = entriesCount;
+        this.tombstoneCount = tombstoneCount;
+        this.generation = generation;
+        this.maxTimestamp = maxTimestamp;
+        this.indexOffsetsStart = indexOffsetsStart;
+        this.offsetSize = (flags & FLAG_LONG_OFFSETS) != 0 ? Long.BYTES : Integer.BYTES;
+        this.checksums = (flags & FLAG_CHECKSUMS) != 0;
+        this.prefixKeys = (flags & FLAG_PREFIX_KEYS) != 0;
+        this.codec = codec;
+        this.bloomFilter = bloomFilter;
+        this.blockCache = blockCache;
+    }
+
+    /**
+     * Read table from the whole mapped file written by {@link Table#flushEntries}.
+     *
+     * @throws IOException if table format is invalid
+     */
+    @NotNull
+    static BlockSSTable from(
+            @NotNull final MappedFile file,
+            @NotNull final BlockCache blockCache) throws IOException {
+        final var size = file.size();
+        if (size < FOOTER_SIZE) {
+            throw new IOException(SSTable.INVALID_FORMAT);
+        }
+        final var footerStart = size - FOOTER_SIZE;
+        final var bloomSize = file.getInt(footerStart);
+        final var hashCount = file.getInt(footerStart + Integer.BYTES);
+        final var blockCount = file.getInt(footerStart + Integer.BYTES * 2);
+        final var entriesCount = file.getInt(footerStart + Integer.BYTES * 3);
+        final var flags = file.getInt(footerStart + Integer.BYTES * 4);
+        if (bloomSize <= 0 || hashCount <= 0 || blockCount <= 0 || entriesCount < blockCount
+                || (long) Long.BYTES * bloomSize > Integer.MAX_VALUE) {
+            throw new IOException(SSTable.INVALID_FORMAT);
+        }
+
+        final BlockCodec codec;
+        try {
+            codec = BlockCodec.forId((flags >>> CODEC_SHIFT) & 0xFF);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(SSTable.INVALID_FORMAT, e);
+        }
+
+        var generation = -1L;
+        var bloomEnd = footerStart;
+        if ((flags & FLAG_GENERATION) != 0) {
+            bloomEnd -= Long.BYTES;
+            if (bloomEnd < 0) {
+                throw new IOException(SSTable.INVALID_FORMAT);
+            }
+            generation = file.getLong(bloomEnd);
+        }
+        var maxTimestamp = Long.MIN_VALUE;
+        if ((flags & FLAG_MAX_TIMESTAMP) != 0) {
+            bloomEnd -= Long.BYTES;
+            if (bloomEnd < 0) {
+                throw new IOException(SSTable.INVALID_FORMAT);
+            }
+            maxTimestamp = file.getLong(bloomEnd);
+        }
+        var tombstoneCount = -1;
+        if ((flags & FLAG_TOMBSTONE_COUNT) != 0) {
+            bloomEnd -= Integer.BYTES;
+            if (bloomEnd < 0) {
+                throw new IOException(SSTable.INVALID_FORMAT);
+            }
+            tombstoneCount = file.getInt(bloomEnd);
+            if (tombstoneCount < 0 || tombstoneCount > entriesCount) {
+                throw new IOException(SSTable.INVALID_FORMAT);
+            }
+        }
+
+        final var offsetSize = (flags & FLAG_LONG_OFFSETS) != 0 ? Long.BYTES : Integer.BYTES;
+        final var bloomStart = bloomEnd - (long) Long.BYTES * bloomSize;
+        final var indexOffsetsStart = bloomStart - (long) offsetSize * blockCount;
+        if (indexOffsetsStart < 0) {
+            throw new IOException(SSTable.INVALID_FORMAT);
+        }
+        final var bits = file.slice(bloomStart, Long.BYTES * bloomSize)
+                .asReadOnlyBuffer()
+                .asLongBuffer();
+
+        return new BlockSSTable(
+                file,
+                blockCount,
+                entriesCount,
+                tombstoneCount,
+                generation,
+                maxTimestamp,
+                indexOffsetsStart,
+                flags,
+                codec,
+                BloomFilter.from(bits, hashCount),
+                blockCache);
+    }
+
+    @Override
+    @NotNull
+    public Iterator<TableEntry> iterator(@NotNull final ByteBuffer from) {
+        final var blockIndex = Math.max(0, floorBlock(from));
+        return new BlockIterator(blockIndex, block(blockIndex).iterator(from));
+    }
+
+    @Override
+    @NotNull
+    public Iterator<TableEntry> iterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        return Cursor.toIterator(cursor(from, to));
+    }
+
+    /**
+     * Keys are compared with the bound in the last block of the range only, the blocks past it are never read.
+     */
+    @Override
+    @NotNull
+    public Cursor cursor(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        final var blockIndex = Math.max(0, floorBlock(from));
+        final var lastBlock = to == null ? blockCount - 1 : floorBlock(to);
+        if (lastBlock < blockIndex) {
+            return Cursor.of(Collections.emptyIterator());
+        }
+        return new BlockCursor(blockIndex, block(blockIndex).cursor(from), lastBlock, to);
+    }
+
+    @Override
+    @NotNull
+    public Iterator<TableEntry> descendingIterator(@Nullable final ByteBuffer to) {
+        final var blockIndex = to == null ? blockCount - 1 : floorBlock(to);
+        if (blockIndex < 0) {
+            return Collections.emptyIterator();
+        }
+        return new DescendingBlockIterator(blockIndex, block(blockIndex).descendingIterator(to));
+    }
+
+    @Override
+    @Nullable
+    public TableEntry get(@NotNull final ByteBuffer key) {
+        final var blockIndex = floorBlock(key);
+        if (blockIndex < 0) {
+            return null;
+        }
+        return block(blockIndex).get(key);
+    }
+
+    /**
+     * Get the size of the blocks in bytes.
+     */
+    @Override
+    public long currentSize() {
+        // Index entries follow the last block
+        return indexEntryOffset(0);
+    }
+
+    @Override
+    public int entriesCount() {
+        return entriesCount;
+    }
+
+    @Override
+    public int tombstoneCount() {
+        return tombstoneCount;
+    }
+
+    @Override
+    public long generation() {
+        return generation;
+    }
+
+    @Override
+    public long maxTimestamp() {
+        return maxTimestamp == Long.MIN_VALUE ? Table.super.maxTimestamp() : maxTimestamp;
+    }
+
+    @Override
+    @NotNull
+    public ByteBuffer firstKey() {
+        return firstKey(0);
+    }
+
+    @Override
+    @NotNull
+    public ByteBuffer lastKey() {
+        final var entries = block(blockCount - 1).iterator(ByteBufferUtils.emptyBuffer());
+        var last = entries.next();
+        while (entries.hasNext()) {
+            last = entries.next();
+        }
+        return last.getKey();
+    }
+
+    /**
+     * Split keys are the first keys of the blocks, so that only the index is read.
+     */
+    @Override
+    @NotNull
+    public List<ByteBuffer> splitKeys(final int parts) {
+        final var keys = new ArrayList<ByteBuffer>(parts - 1);
+        var previous = 0;
+        for (int part = 1; part < parts; part++) {
+            final var blockIndex = (int) ((long) blockCount * part / parts);
+            if (blockIndex > previous) {
+                keys.add(ByteBufferUtils.toHeap(firstKey(blockIndex)));
+                previous = blockIndex;
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public boolean mightContain(@NotNull final ByteBuffer key) {
+        return bloomFilter.mightContain(key);
+    }
+
+    /**
+     * Cached blocks might be views of the mapped file, so they are dropped before it is unmapped.
+     */
+    @Override
+    public void close() {
+        blockCache.invalidate(id);
+        file.unmap();
+    }
+
+    /**
+     * Get the index of the last block with the first key less than or equal to the given one.
+     *
+     * @return block index or -1 if the key is less than the first key of the table
+     */
+    private int floorBlock(@NotNull final ByteBuffer key) {
+        var left = 0;
+        var right = blockCount - 1;
+        while (left <= right) {
+            final var mid = left + (right - left) / 2;
+            final var cmp = compareFirstKey(mid, key);
+            if (cmp < 0) {
+                left = mid + 1;
+            } else if (cmp > 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return left - 1;
+    }
+
+    @NotNull
+    private ByteBuffer firstKey(final int blockIndex) {
+        final var offset = indexEntryOffset(blockIndex) + offsetSize + Integer.BYTES;
+        final var keySize = file.getInt(offset);
+        return file.slice(offset + Integer.BYTES, keySize);
+    }
+
+    private int compareFirstKey(
+            final int blockIndex,
+            @NotNull final ByteBuffer key) {
+        final var offset = indexEntryOffset(blockIndex) + offsetSize + Integer.BYTES;
+        final var keySize = file.getInt(offset);
+        return file.compare(offset + Integer.BYTES, keySize, key);
+    }
+
+    private long indexEntryOffset(final int blockIndex) {
+        return offset(indexOffsetsStart + (long) offsetSize * blockIndex);
+    }
+
+    private long blockOffset(final int blockIndex) {
+        return offset(indexEntryOffset(blockIndex));
+    }
+
+    /**
+     * Get the size of the block including its checksum.
+     */
+    private int blockSize(final int blockIndex) {
+        return file.getInt(indexEntryOffset(blockIndex) + offsetSize);
+    }
+
+    /**
+     * Read the offset stored at the given one, tables written before long offsets were introduced fit into 2 GB.
+     */
+    private long offset(final long at) {
+        return offsetSize == Long.BYTES ? file.getLong(at) : file.getInt(at);
+    }
+
+    @NotNull
+    private Block block(final int blockIndex) {
+        return blockCache.get(id, blockIndex, () -> readBlock(blockIndex));
+    }
+
+    /**
+     * Slice the block out of the mapping, verify its checksum if present and decompress it if needed.
+     *
+     * @throws UncheckedIOException if the block is corrupted
+     */
+    @NotNull
+    private Block readBlock(final int blockIndex) {
+        final var offset = blockOffset(blockIndex);
+        final var stored = file.slice(offset, blockSize(blockIndex));
+        if (checksums) {
+            final var size = stored.limit() - Integer.BYTES;
+            final var crc = new CRC32();
+            crc.update(stored.limit(size));
+            if ((int) crc.getValue() != stored.limit(size + Integer.BYTES).getInt(size)) {
+                throw new UncheckedIOException(new IOException("Block checksum mismatch at offset " + offset));
+            }
+            stored.position(0).limit(size);
+        }
+        if (codec == null) {
+            return Block.from(stored, prefixKeys);
+        }
+
+        final var rawSize = stored.getInt(0);
+        final var payload = stored.position(Integer.BYTES).slice();
+        if (rawSize < 0) {
+            return Block.from(payload, prefixKeys);
+        }
+        try {
+            return Block.from(codec.decompress(payload, rawSize), prefixKeys);
+        } catch (IllegalArgumentException e) {
+            throw new UncheckedIOException(new IOException("Invalid compressed block at offset " + offset, e));
+        }
+    }
+
+    private final class BlockIterator implements Iterator<TableEntry> {
+        private int blockIndex;
+        private Iterator<TableEntry> entries;
+
+        BlockIterator(
+                final int blockIndex,
+                @NotNull final Iterator<TableEntry> entries) {
+            this.blockIndex = blockIndex;
+            this.entries = entries;
+        }
+
+        /**
+         * Blocks are never empty, so the next block is read only when its entry is requested.
+         */
+        @Override
+        public boolean hasNext() {
+            return entries.hasNext() || blockIndex + 1 < blockCount;
+        }
+
+        @Override
+        public TableEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (!entries.hasNext()) {
+                entries = block(++blockIndex).iterator(ByteBufferUtils.emptyBuffer());
+            }
+            return entries.next();
+        }
+    }
+
+    private final class DescendingBlockIterator implements Iterator<TableEntry> {
+        private int blockIndex;
+        private Iterator<TableEntry> entries;
+
+        DescendingBlockIterator(
+                final int blockIndex,
+                @NotNull final Iterator<TableEntry> entries) {
+            this.blockIndex = blockIndex;
+            this.entries = entries;
+        }
+
+        /**
+         * Entries of the first block might all be beyond the bound, then the previous block is read.
+         */
+        @Override
+        public boolean hasNext() {
+            while (!entries.hasNext() && blockIndex > 0) {
+                entries = block(--blockIndex).descendingIterator(null);
+            }
+            return entries.hasNext();
+        }
+
+        @Override
+        public TableEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return entries.next();
+        }
+    }
+
+    private final class BlockCursor implements Cursor {
+        private final int lastBlock;
+        @Nullable
+        private final ByteBuffer to;
+        private int blockIndex;
+        private Cursor entries;
+
+        BlockCursor(
+                final int blockIndex,
+                @NotNull final Cursor entries,
+                final int lastBlock,
+                @Nullable final ByteBuffer to) {
+            this.blockIndex = blockIndex;
+            this.entries = entries;
+            this.lastBlock = lastBlock;
+            this.to = to;
+        }
+
+        @Override
+        public boolean advance() {
+            while (!entries.advance()) {
+                if (blockIndex >= lastBlock) {
+                    return false;
+                }
+                entries = block(++blockIndex).cursor(ByteBufferUtils.emptyBuffer());
+            }
+            return blockIndex < lastBlock || to == null || entries.keyView().compareTo(to) < 0;
+        }
+
+        @Override
+        @NotNull
+        public ByteBuffer keyView() {
+            return entries.keyView();
+        }
+
+        @Override
+        @NotNull
+        public ByteBuffer valueView() {
+            return entries.valueView();
+        }
+
+        @Override
+        public boolean hasTombstone() {
+            return entries.hasTombstone();
+        }
+
+        @Override
+        public long ts() {
+            return entries.ts();
+        }
+
+        @Override
+        @NotNull
+        public TableEntry entry() {
+            return entries.entry();
+        }
+    }
+}
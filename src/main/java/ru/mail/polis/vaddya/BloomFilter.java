@@ -0,0 +1,167 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * Bloom filter over table keys, either built in memory or read from the mapped SSTable footer.
+ *
+ * <p>Bit positions are derived from a 64-bit key hash and its rotation (Kirsch-Mitzenmacher),
+ * so a probe neither allocates nor hashes the key more than once. Positions are combined as 64-bit values,
+ * so that filters of more than 2^31 bits are addressed entirely.
+ */
+final class BloomFilter {
+    private static final double LN2 = Math.log(2);
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+    private static final long MULTIPLIER = 0xC6A4A7935BD1E995L;
+
+    private final LongBuffer bits;
+    private final int hashCount;
+    private final long bitCount;
+
+    private BloomFilter(
+            @NotNull final LongBuffer bits,
+            final int hashCount) {
+        this.bits = bits;
+        this.hashCount = hashCount;
+        this.bitCount = (long) bits.limit() * Long.SIZE;
+    }
+
+    /**
+     * Create an empty filter able to hold the expected number of keys with the given false positive rate.
+     */
+    @NotNull
+    static BloomFilter create(
+            final int expectedKeys,
+            final double falsePositiveRate) {
+        final var keys = Math.max(1, expectedKeys);
+        final var optimalBits = (long) Math.ceil(-keys * Math.log(falsePositiveRate) / (LN2 * LN2));
+        // Serialized bits should fit into a single buffer
+        final var maxWords = (Integer.MAX_VALUE - 8) / Long.BYTES;
+        final var words = (int) Math.min(maxWords, Math.max(1, (optimalBits + Long.SIZE - 1) / Long.SIZE));
+        final var hashCount = (int) Math.max(1, Math.round(-Math.log(falsePositiveRate) / LN2));
+        return new BloomFilter(LongBuffer.allocate(words), hashCount);
+    }
+
+    /**
+     * Create a filter holding the first given number of key hashes produced by {@link #hash(ByteBuffer)},
+     * sized for exactly as many keys.
+     */
+    @NotNull
+    static BloomFilter of(
+            @NotNull final long[] hashes,
+            final int count,
+            final double falsePositiveRate) {
+        final var filter = create(count, falsePositiveRate);
+        for (int i = 0; i < count; i++) {
+            filter.addHash(hashes[i]);
+        }
+        return filter;
+    }
+
+    /**
+     * Read filter from the bits written by {@link #toByteBuffer()}.
+     */
+    @NotNull
+    static BloomFilter from(
+            @NotNull final LongBuffer bits,
+            final int hashCount) {
+        return new BloomFilter(bits, hashCount);
+    }
+
+    void add(@NotNull final ByteBuffer key) {
+        addHash(hash(key));
+    }
+
+    private void addHash(final long hash) {
+        final var rotated = Long.rotateLeft(hash, 32);
+        for (int i = 1; i <= hashCount; i++) {
+            final var bit = index(hash + i * rotated, bitCount);
+            final var word = (int) (bit >>> 6);
+            bits.put(word, bits.get(word) | (1L << bit));
+        }
+    }
+
+    /**
+     * Check whether the key might have been added to the filter.
+     * False means that the key has definitely not been added.
+     */
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        final var hash = hash(key);
+        final var rotated = Long.rotateLeft(hash, 32);
+        for (int i = 1; i <= hashCount; i++) {
+            final var bit = index(hash + i * rotated, bitCount);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int hashCount() {
+        return hashCount;
+    }
+
+    /**
+     * Get the number of longs holding the filter bits.
+     */
+    int size() {
+        return bits.limit();
+    }
+
+    @NotNull
+    ByteBuffer toByteBuffer() {
+        final var buffer = ByteBuffer.allocate(Long.BYTES * bits.limit());
+        buffer.asLongBuffer().put(bits.duplicate().rewind());
+        return buffer;
+    }
+
+    /**
+     * Map the combined hash to a bit position, every position of the filter is reachable.
+     */
+    static long index(
+            final long combinedHash,
+            final long bitCount) {
+        return Long.remainderUnsigned(combinedHash, bitCount);
+    }
+
+    /**
+     * MurmurHash64A over the remaining bytes of the key, position of the key is left intact.
+     */
+    static long hash(@NotNull final ByteBuffer key) {
+        final var from = key.position();
+        final var length = key.remaining();
+        var hash = SEED ^ (length * MULTIPLIER);
+
+        var offset = from;
+        final var blocksEnd = from + length - length % Long.BYTES;
+        for (; offset < blocksEnd; offset += Long.BYTES) {
+            var block = key.getLong(offset);
+            if (key.order() == ByteOrder.LITTLE_ENDIAN) {
+                block = Long.reverseBytes(block);
+            }
+            block *= MULTIPLIER;
+            block ^= block >>> 47;
+            block *= MULTIPLIER;
+            hash ^= block;
+            hash *= MULTIPLIER;
+        }
+
+        if (offset < from + length) {
+            var tail = 0L;
+            for (int i = offset; i < from + length; i++) {
+                tail = tail << 8 | (key.get(i) & 0xFF);
+            }
+            hash ^= tail;
+            hash *= MULTIPLIER;
+        }
+
+        hash ^= hash >>> 47;
+        hash *= MULTIPLIER;
+        hash ^= hash >>> 47;
+        return hash;
+    }
+}
@@ -1,12 +1,20 @@
 package ru.mail.polis.vaddya;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.nio.ByteBuffer;
-import java.util.List;
 
 final class ByteBufferUtils {
     private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+    /**
+     * Unsafe.invokeCleaner bound to the Unsafe instance, null if the runtime does not provide it.
+     */
+    @Nullable
+    private static final MethodHandle INVOKE_CLEANER = invokeCleaner();
 
     private ByteBufferUtils() {
     }
@@ -24,9 +32,9 @@ final class ByteBufferUtils {
     }
 
     @NotNull
-    static ByteBuffer fromIntList(@NotNull final List<Integer> list) {
-        final var buffer = ByteBuffer.allocate(Integer.BYTES * list.size());
-        list.forEach(buffer::putInt);
+    static ByteBuffer fromLong(final long value) {
+        final var buffer = ByteBuffer.allocate(Long.BYTES);
+        buffer.putLong(value);
         return buffer.flip();
     }
 
@@ -44,22 +52,139 @@ final class ByteBufferUtils {
      */
     @NotNull
     static ByteBuffer fromTableEntry(@NotNull final TableEntry entry) {
+        return putTableEntry(ByteBuffer.allocate(serializedSize(entry)), entry).flip();
+    }
+
+    /**
+     * Write the entry the same way as {@link #fromTableEntry(TableEntry)} does at the position of the buffer.
+     *
+     * @return the buffer
+     */
+    @NotNull
+    static ByteBuffer putTableEntry(
+            @NotNull final ByteBuffer buffer,
+            @NotNull final TableEntry entry) {
+        buffer.putInt(entry.getKey().remaining())
+                .put(entry.getKey().duplicate());
+        if (entry.hasTombstone()) {
+            return buffer.putLong(-entry.ts());
+        }
+        return buffer.putLong(entry.ts())
+                .putInt(entry.getValue().remaining())
+                .put(entry.getValue().duplicate());
+    }
+
+    /**
+     * Get the size of the buffer {@link #fromTableEntry(TableEntry)} creates for the entry.
+     */
+    static int serializedSize(@NotNull final TableEntry entry) {
         final var keySize = entry.getKey().remaining();
         if (entry.hasTombstone()) {
-            return ByteBuffer.allocate(Integer.BYTES + keySize + Long.BYTES)
-                    .putInt(keySize)
-                    .put(entry.getKey())
-                    .putLong(-entry.ts())
-                    .flip();
+            return Integer.BYTES + keySize + Long.BYTES;
+        }
+        return Integer.BYTES + keySize + Long.BYTES + Integer.BYTES + entry.getValue().remaining();
+    }
+
+    /**
+     * Read table entry written by {@link #fromTableEntry(TableEntry)} at the given offset.
+     * Key and value are slices of the buffer, buffer position is left intact.
+     */
+    @NotNull
+    static TableEntry toTableEntry(
+            @NotNull final ByteBuffer buffer,
+            final int offset) {
+        var position = offset;
+
+        final var keySize = buffer.getInt(position);
+        position += Integer.BYTES;
+
+        final var key = buffer.duplicate()
+                .position(position)
+                .limit(position + keySize)
+                .slice();
+        position += keySize;
+
+        final var ts = buffer.getLong(position);
+        position += Long.BYTES;
+        if (ts < 0) {
+            return TableEntry.from(key, null, true, -ts);
         }
 
-        final var valueSize = entry.getValue().remaining();
-        return ByteBuffer.allocate(Integer.BYTES + keySize + Long.BYTES + Integer.BYTES + valueSize)
-                .putInt(keySize)
-                .put(entry.getKey())
-                .putLong(entry.ts())
-                .putInt(valueSize)
-                .put(entry.getValue())
-                .flip();
+        final var valueSize = buffer.getInt(position);
+        position += Integer.BYTES;
+
+        final var value = buffer.duplicate()
+                .position(position)
+                .limit(position + valueSize)
+                .slice();
+
+        return TableEntry.from(key, value, false, ts);
+    }
+
+    /**
+     * Copy the remaining bytes of a direct buffer to the heap, so that the copy outlives the memory
+     * it was read from. Heap buffers are returned as is.
+     */
+    @NotNull
+    static ByteBuffer toHeap(@NotNull final ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return buffer;
+        }
+        return ByteBuffer.allocate(buffer.remaining()).put(buffer.duplicate()).flip();
+    }
+
+    /**
+     * Unmap the mapped buffer right away instead of waiting for it to be collected.
+     * Neither the buffer nor its views may be accessed afterwards, the JVM crashes otherwise.
+     * Does nothing if the runtime does not allow unmapping, the mapping is released by GC then.
+     *
+     * @param mapped buffer returned by {@link java.nio.channels.FileChannel#map}, not a view of it
+     */
+    static void unmap(@NotNull final ByteBuffer mapped) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invokeExact(mapped);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Unable to unmap buffer", e);
+        }
+    }
+
+    @Nullable
+    private static MethodHandle invokeCleaner() {
+        try {
+            final var unsafeClass = Class.forName("sun.misc.Unsafe");
+            final var field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compare the bytes of the buffer region with the remaining bytes of the key
+     * the same way as {@link ByteBuffer#compareTo(ByteBuffer)} does, without creating a slice.
+     */
+    static int compare(
+            @NotNull final ByteBuffer buffer,
+            final int offset,
+            final int length,
+            @NotNull final ByteBuffer key) {
+        final var keyOffset = key.position();
+        final var keyLength = key.remaining();
+        final var common = Math.min(length, keyLength);
+        for (int i = 0; i < common; i++) {
+            final var cmp = Byte.compare(buffer.get(offset + i), key.get(keyOffset + i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - keyLength;
     }
 }
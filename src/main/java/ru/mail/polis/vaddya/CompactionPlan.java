@@ -0,0 +1,103 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compaction of the input tables into the target level.
+ */
+final class CompactionPlan {
+    @NotNull
+    final List<TableFile> inputs;
+    final int level;
+    /**
+     * Whether no older table might contain the keys of the inputs, so that tombstones can be dropped.
+     */
+    final boolean bottommost;
+    /**
+     * Whether the single input is rewritten in place to drop its tombstones rather than moved.
+     */
+    final boolean purge;
+
+    CompactionPlan(
+            @NotNull final List<TableFile> inputs,
+            final int level,
+            final boolean bottommost) {
+        this(inputs, level, bottommost, false);
+    }
+
+    CompactionPlan(
+            @NotNull final List<TableFile> inputs,
+            final int level,
+            final boolean bottommost,
+            final boolean purge) {
+        this.inputs = inputs;
+        this.level = level;
+        this.bottommost = bottommost;
+        this.purge = purge;
+    }
+
+    /**
+     * Check whether no level deeper than the given one has tables overlapping the inclusive key range.
+     */
+    static boolean isBottommost(
+            @NotNull final TableSet tables,
+            final int level,
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to) {
+        for (int deeper = level + 1; deeper < tables.levels.size(); deeper++) {
+            for (final var file : tables.levels.get(deeper)) {
+                if (file.overlaps(from, to)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pick the keys splitting the inputs into ranges of about the same size. The split keys of every input
+     * are taken as samples, each one standing for an equal share of its table.
+     *
+     * @param parts number of ranges
+     * @return ascending keys, fewer than parts - 1 if the inputs are too small to split
+     */
+    @NotNull
+    List<ByteBuffer> splitKeys(final int parts) {
+        final var samples = new ArrayList<Map.Entry<ByteBuffer, Long>>();
+        var total = 0L;
+        for (final var file : inputs) {
+            final var keys = file.table.splitKeys(parts);
+            final var share = file.sizeInBytes / (keys.size() + 1);
+            keys.forEach(key -> samples.add(Map.entry(key, share)));
+            total += file.sizeInBytes;
+        }
+        samples.sort(Map.Entry.comparingByKey());
+
+        final var result = new ArrayList<ByteBuffer>(parts - 1);
+        var below = 0L;
+        for (final var sample : samples) {
+            below += sample.getValue();
+            final var key = sample.getKey();
+            if (below * parts >= total * (result.size() + 1)
+                    && (result.isEmpty() || result.get(result.size() - 1).compareTo(key) < 0)) {
+                result.add(key);
+                if (result.size() == parts - 1) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check whether the single input does not overlap the target level and can be moved without rewriting.
+     */
+    boolean isTrivialMove() {
+        return inputs.size() == 1 && !purge;
+    }
+}
@@ -0,0 +1,29 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decides which tables should be compacted next.
+ */
+interface CompactionStrategy {
+    /**
+     * Pick the most urgent compaction, implementations are not required to be thread-safe.
+     *
+     * @return compaction plan or null if nothing should be compacted
+     */
+    @Nullable
+    CompactionPlan pick(@NotNull TableSet tables);
+
+    @NotNull
+    static CompactionStrategy of(@NotNull final Config config) {
+        switch (config.compactionStyle()) {
+            case LEVELED:
+                return new LeveledCompaction(config);
+            case SIZE_TIERED:
+                return new SizeTieredCompaction(config);
+            default:
+                throw new IllegalArgumentException("Unknown compaction style: " + config.compactionStyle());
+        }
+    }
+}
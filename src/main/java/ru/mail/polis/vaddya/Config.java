@@ -0,0 +1,509 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Tunable parameters of {@link DAOImpl}.
+ */
+public final class Config {
+    private final long flushThresholdInBytes;
+    private final int maxFlushQueueSize;
+    private final boolean offHeapMemTable;
+    private final Durability durability;
+    private final long groupCommitIntervalMillis;
+    private final double bloomFalsePositiveRate;
+    private final int blockSizeInBytes;
+    private final int blockRestartInterval;
+    private final boolean blockChecksums;
+    private final Compression compression;
+    private final long blockCacheSizeInBytes;
+    private final int level0CompactionTrigger;
+    private final long levelBaseSizeInBytes;
+    private final int levelSizeMultiplier;
+    private final int maxLevels;
+    private final long tableSizeInBytes;
+    private final int mapRegionSizeInBytes;
+    private final int indexBufferSizeInBytes;
+    private final CompactionStyle compactionStyle;
+    private final int sizeTieredMinThreshold;
+    private final long compactionBytesPerSecond;
+    private final int maxSubcompactions;
+    private final double tombstoneCompactionRatio;
+
+    /**
+     * Defines when writes are forced from the write-ahead log to the disk.
+     */
+    public enum Durability {
+        /**
+         * Every write waits for fsync, concurrent writers share a single fsync.
+         */
+        SYNC,
+        /**
+         * Writes wait for the next group commit which forces the log every {@link #groupCommitIntervalMillis()}.
+         */
+        GROUP,
+        /**
+         * Writes never wait, the log survives process crashes but not power loss.
+         */
+        ASYNC
+    }
+
+    /**
+     * Defines how SSTable blocks are compressed, blocks which do not shrink are always stored as is.
+     */
+    public enum Compression {
+        /**
+         * Blocks are stored as is.
+         */
+        NONE,
+        /**
+         * JDK Deflater, the best ratio at the cost of slower writes and reads.
+         */
+        DEFLATE,
+        /**
+         * LZ4 block format, fast compression and decompression with a moderate ratio.
+         */
+        LZ4
+    }
+
+    /**
+     * Defines how background compaction picks the tables to merge.
+     */
+    public enum CompactionStyle {
+        /**
+         * Tables are arranged in levels of exponentially growing size, keys of a level do not overlap.
+         * Favours reads and space amplification.
+         */
+        LEVELED,
+        /**
+         * Runs of similarly-sized tables are merged into a single larger one. Favours write amplification.
+         */
+        SIZE_TIERED
+    }
+
+    private Config(@NotNull final Builder builder) {
+        this.flushThresholdInBytes = builder.flushThresholdInBytes;
+        this.maxFlushQueueSize = builder.maxFlushQueueSize;
+        this.offHeapMemTable = builder.offHeapMemTable;
+        this.durability = builder.durability;
+        this.groupCommitIntervalMillis = builder.groupCommitIntervalMillis;
+        this.bloomFalsePositiveRate = builder.bloomFalsePositiveRate;
+        this.blockSizeInBytes = builder.blockSizeInBytes;
+        this.blockRestartInterval = builder.blockRestartInterval;
+        this.blockChecksums = builder.blockChecksums;
+        this.compression = builder.compression;
+        this.blockCacheSizeInBytes = builder.blockCacheSizeInBytes;
+        this.level0CompactionTrigger = builder.level0CompactionTrigger;
+        this.levelBaseSizeInBytes = builder.levelBaseSizeInBytes;
+        this.levelSizeMultiplier = builder.levelSizeMultiplier;
+        this.maxLevels = builder.maxLevels;
+        this.tableSizeInBytes = builder.tableSizeInBytes;
+        this.mapRegionSizeInBytes = builder.mapRegionSizeInBytes;
+        this.indexBufferSizeInBytes = builder.indexBufferSizeInBytes;
+        this.compactionStyle = builder.compactionStyle;
+        this.sizeTieredMinThreshold = builder.sizeTieredMinThreshold;
+        this.compactionBytesPerSecond = builder.compactionBytesPerSecond;
+        this.maxSubcompactions = builder.maxSubcompactions;
+        this.tombstoneCompactionRatio = builder.tombstoneCompactionRatio;
+    }
+
+    @NotNull
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Get the MemTable size in bytes after which it is frozen and flushed to disk.
+     */
+    public long flushThresholdInBytes() {
+        return flushThresholdInBytes;
+    }
+
+    /**
+     * Get the number of frozen MemTables waiting for flush after which writers are blocked.
+     */
+    public int maxFlushQueueSize() {
+        return maxFlushQueueSize;
+    }
+
+    /**
+     * Check whether MemTable entries and their index are kept in direct memory.
+     * Up to {@link #maxFlushQueueSize()} + 1 MemTables should fit into -XX:MaxDirectMemorySize then.
+     */
+    public boolean offHeapMemTable() {
+        return offHeapMemTable;
+    }
+
+    /**
+     * Get the durability mode of the write-ahead log.
+     */
+    @NotNull
+    public Durability durability() {
+        return durability;
+    }
+
+    /**
+     * Get the interval between group commits, used with {@link Durability#GROUP} only.
+     */
+    public long groupCommitIntervalMillis() {
+        return groupCommitIntervalMillis;
+    }
+
+    /**
+     * Get the false positive rate of the Bloom filters built for new SSTables.
+     */
+    public double bloomFalsePositiveRate() {
+        return bloomFalsePositiveRate;
+    }
+
+    /**
+     * Get the target size of SSTable blocks, a block holding a single larger entry might exceed it.
+     */
+    public int blockSizeInBytes() {
+        return blockSizeInBytes;
+    }
+
+    /**
+     * Get the number of entries between keys stored in full within SSTable blocks,
+     * the rest of the keys are stored as a suffix after the prefix shared with the previous key.
+     */
+    public int blockRestartInterval() {
+        return blockRestartInterval;
+    }
+
+    /**
+     * Get whether CRC32 checksums are written for new SSTable blocks and verified on read.
+     */
+    public boolean blockChecksums() {
+        return blockChecksums;
+    }
+
+    /**
+     * Get the compression of new SSTable blocks, every table records its own codec.
+     */
+    @NotNull
+    public Compression compression() {
+        return compression;
+    }
+
+    /**
+     * Get the total size of SSTable blocks kept in the block cache, zero disables the cache.
+     */
+    public long blockCacheSizeInBytes() {
+        return blockCacheSizeInBytes;
+    }
+
+    /**
+     * Get the number of tables in level 0 after which they are compacted into level 1.
+     */
+    public int level0CompactionTrigger() {
+        return level0CompactionTrigger;
+    }
+
+    /**
+     * Get the total size of level 1 tables after which they are compacted into level 2.
+     */
+    public long levelBaseSizeInBytes() {
+        return levelBaseSizeInBytes;
+    }
+
+    /**
+     * Get how many times every next level is allowed to be larger than the previous one.
+     */
+    public int levelSizeMultiplier() {
+        return levelSizeMultiplier;
+    }
+
+    /**
+     * Get the number of levels including level 0, the last level is never compacted further.
+     */
+    public int maxLevels() {
+        return maxLevels;
+    }
+
+    /**
+     * Get the approximate size of tables produced by compaction.
+     */
+    public long tableSizeInBytes() {
+        return tableSizeInBytes;
+    }
+
+    /**
+     * Get the size of the regions SSTable files are mapped with, a single mapping cannot exceed 2 GB.
+     * Reads crossing a region boundary are copied.
+     */
+    public int mapRegionSizeInBytes() {
+        return mapRegionSizeInBytes;
+    }
+
+    /**
+     * Get the size of the heap buffer holding the index of a table being written.
+     * Larger indexes are spilled to a temporary file, so that writing a table takes bounded heap.
+     */
+    public int indexBufferSizeInBytes() {
+        return indexBufferSizeInBytes;
+    }
+
+    @NotNull
+    public CompactionStyle compactionStyle() {
+        return compactionStyle;
+    }
+
+    /**
+     * Get the minimal number of similarly-sized tables merged by the size-tiered strategy.
+     */
+    public int sizeTieredMinThreshold() {
+        return sizeTieredMinThreshold;
+    }
+
+    /**
+     * Get the rate background compactions write at, zero means unlimited.
+     */
+    public long compactionBytesPerSecond() {
+        return compactionBytesPerSecond;
+    }
+
+    /**
+     * Get the maximal number of key ranges a compaction into level 1 or deeper is split into,
+     * the ranges are merged in parallel into tables of their own. 1 means that compactions are not split.
+     */
+    public int maxSubcompactions() {
+        return maxSubcompactions;
+    }
+
+    /**
+     * Get the share of tombstones making a table worth compacting on its own once no level needs compaction,
+     * so that the tombstones are dropped or pushed towards the bottommost level. 1 means that tables
+     * are never compacted for their tombstones.
+     */
+    public double tombstoneCompactionRatio() {
+        return tombstoneCompactionRatio;
+    }
+
+    public static final class Builder {
+        private long flushThresholdInBytes = 4 * 1024 * 1024;
+        private int maxFlushQueueSize = 2;
+        private boolean offHeapMemTable;
+        private Durability durability = Durability.ASYNC;
+        private long groupCommitIntervalMillis = 10;
+        private double bloomFalsePositiveRate = 0.01;
+        private int blockSizeInBytes = 4 * 1024;
+        private int blockRestartInterval = 16;
+        private boolean blockChecksums = true;
+        private Compression compression = Compression.NONE;
+        private long blockCacheSizeInBytes = 8 * 1024 * 1024;
+        private int level0CompactionTrigger = 4;
+        private long levelBaseSizeInBytes = 16 * 1024 * 1024;
+        private int levelSizeMultiplier = 10;
+        private int maxLevels = 7;
+        private long tableSizeInBytes = 4 * 1024 * 1024;
+        private int mapRegionSizeInBytes = 1024 * 1024 * 1024;
+        private int indexBufferSizeInBytes = 1024 * 1024;
+        private CompactionStyle compactionStyle = CompactionStyle.LEVELED;
+        private int sizeTieredMinThreshold = 4;
+        private long compactionBytesPerSecond;
+        private int maxSubcompactions = 1;
+        private double tombstoneCompactionRatio = 0.5;
+
+        private Builder() {
+        }
+
+        @NotNull
+        public Builder flushThresholdInBytes(final long flushThresholdInBytes) {
+            if (flushThresholdInBytes < 0) {
+                throw new IllegalArgumentException("Flush threshold should be non-negative");
+            }
+            this.flushThresholdInBytes = flushThresholdInBytes;
+            return this;
+        }
+
+        @NotNull
+        public Builder maxFlushQueueSize(final int maxFlushQueueSize) {
+            if (maxFlushQueueSize <= 0) {
+                throw new IllegalArgumentException("Flush queue size should be positive");
+            }
+            this.maxFlushQueueSize = maxFlushQueueSize;
+            return this;
+        }
+
+        @NotNull
+        public Builder offHeapMemTable(final boolean offHeapMemTable) {
+            this.offHeapMemTable = offHeapMemTable;
+            return this;
+        }
+
+        @NotNull
+        public Builder durability(@NotNull final Durability durability) {
+            this.durability = durability;
+            return this;
+        }
+
+        @NotNull
+        public Builder groupCommitIntervalMillis(final long groupCommitIntervalMillis) {
+            if (groupCommitIntervalMillis <= 0) {
+                throw new IllegalArgumentException("Group commit interval should be positive");
+            }
+            this.groupCommitIntervalMillis = groupCommitIntervalMillis;
+            return this;
+        }
+
+        @NotNull
+        public Builder bloomFalsePositiveRate(final double bloomFalsePositiveRate) {
+            if (!(bloomFalsePositiveRate > 0 && bloomFalsePositiveRate < 1)) {
+                throw new IllegalArgumentException("False positive rate should be in (0, 1)");
+            }
+            this.bloomFalsePositiveRate = bloomFalsePositiveRate;
+            return this;
+        }
+
+        @NotNull
+        public Builder blockSizeInBytes(final int blockSizeInBytes) {
+            if (blockSizeInBytes <= 0) {
+                throw new IllegalArgumentException("Block size should be positive");
+            }
+            this.blockSizeInBytes = blockSizeInBytes;
+            return this;
+        }
+
+        @NotNull
+        public Builder blockRestartInterval(final int blockRestartInterval) {
+            if (blockRestartInterval <= 0) {
+                throw new IllegalArgumentException("Restart interval should be positive");
+            }
+            this.blockRestartInterval = blockRestartInterval;
+            return this;
+        }
+
+        @NotNull
+        public Builder blockChecksums(final boolean blockChecksums) {
+            this.blockChecksums = blockChecksums;
+            return this;
+        }
+
+        @NotNull
+        public Builder compression(@NotNull final Compression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        @NotNull
+        public Builder blockCacheSizeInBytes(final long blockCacheSizeInBytes) {
+            if (blockCacheSizeInBytes < 0) {
+                throw new IllegalArgumentException("Block cache size should be non-negative");
+            }
+            this.blockCacheSizeInBytes = blockCacheSizeInBytes;
+            return this;
+        }
+
+        @NotNull
+        public Builder level0CompactionTrigger(final int level0CompactionTrigger) {
+            if (level0CompactionTrigger <= 0) {
+                throw new IllegalArgumentException("Level 0 compaction trigger should be positive");
+            }
+            this.level0CompactionTrigger = level0CompactionTrigger;
+            return this;
+        }
+
+        @NotNull
+        public Builder levelBaseSizeInBytes(final long levelBaseSizeInBytes) {
+            if (levelBaseSizeInBytes <= 0) {
+                throw new IllegalArgumentException("Level base size should be positive");
+            }
+            this.levelBaseSizeInBytes = levelBaseSizeInBytes;
+            return this;
+        }
+
+        @NotNull
+        public Builder levelSizeMultiplier(final int levelSizeMultiplier) {
+            if (levelSizeMultiplier < 2) {
+                throw new IllegalArgumentException("Level size multiplier should be at least 2");
+            }
+            this.levelSizeMultiplier = levelSizeMultiplier;
+            return this;
+        }
+
+        @NotNull
+        public Builder maxLevels(final int maxLevels) {
+            if (maxLevels < 2) {
+                throw new IllegalArgumentException("There should be at least 2 levels");
+            }
+            this.maxLevels = maxLevels;
+            return this;
+        }
+
+        @NotNull
+        public Builder tableSizeInBytes(final long tableSizeInBytes) {
+            if (tableSizeInBytes <= 0) {
+                throw new IllegalArgumentException("Table size should be positive");
+            }
+            this.tableSizeInBytes = tableSizeInBytes;
+            return this;
+        }
+
+        @NotNull
+        public Builder mapRegionSizeInBytes(final int mapRegionSizeInBytes) {
+            // Every region takes a mapping of its own
+            if (mapRegionSizeInBytes < 4096 || Integer.bitCount(mapRegionSizeInBytes) != 1) {
+                throw new IllegalArgumentException("Map region size should be a power of two not less than 4 KB");
+            }
+            this.mapRegionSizeInBytes = mapRegionSizeInBytes;
+            return this;
+        }
+
+        @NotNull
+        public Builder indexBufferSizeInBytes(final int indexBufferSizeInBytes) {
+            if (indexBufferSizeInBytes <= 0) {
+                throw new IllegalArgumentException("Index buffer size should be positive");
+            }
+            this.indexBufferSizeInBytes = indexBufferSizeInBytes;
+            return this;
+        }
+
+        @NotNull
+        public Builder compactionStyle(@NotNull final CompactionStyle compactionStyle) {
+            this.compactionStyle = compactionStyle;
+            return this;
+        }
+
+        @NotNull
+        public Builder sizeTieredMinThreshold(final int sizeTieredMinThreshold) {
+            if (sizeTieredMinThreshold < 2) {
+                throw new IllegalArgumentException("Size-tiered threshold should be at least 2");
+            }
+            this.sizeTieredMinThreshold = sizeTieredMinThreshold;
+            return this;
+        }
+
+        @NotNull
+        public Builder compactionBytesPerSecond(final long compactionBytesPerSecond) {
+            if (compactionBytesPerSecond < 0) {
+                throw new IllegalArgumentException("Compaction rate should be non-negative");
+            }
+            this.compactionBytesPerSecond = compactionBytesPerSecond;
+            return this;
+        }
+
+        @NotNull
+        public Builder maxSubcompactions(final int maxSubcompactions) {
+            if (maxSubcompactions <= 0) {
+                throw new IllegalArgumentException("Number of subcompactions should be positive");
+            }
+            this.maxSubcompactions = maxSubcompactions;
+            return this;
+        }
+
+        @NotNull
+        public Builder tombstoneCompactionRatio(final double tombstoneCompactionRatio) {
+            if (!(tombstoneCompactionRatio > 0 && tombstoneCompactionRatio <= 1)) {
+                throw new IllegalArgumentException("Tombstone compaction ratio should be in (0, 1]");
+            }
+            this.tombstoneCompactionRatio = tombstoneCompactionRatio;
+            return this;
+        }
+
+        @NotNull
+        public Config build() {
+            return new Config(this);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Forward-only position over sorted table entries, a flyweight alternative to {@link Iterator}
+ * which does not create an object per entry.
+ *
+ * <p>Cursor is positioned before the first entry, the accessors are valid only after {@link #advance()}
+ * returned true. Views should not be modified and might be reused for the next entry: the key view
+ * is valid until the next call to {@link #advance()}, while the bytes of the value view are never
+ * overwritten, so the value can be kept by slicing the view.
+ */
+interface Cursor {
+    /**
+     * Move to the next entry.
+     *
+     * @return false if there are no more entries
+     */
+    boolean advance();
+
+    /**
+     * Get the key of the current entry.
+     */
+    @NotNull
+    ByteBuffer keyView();
+
+    /**
+     * Get the value of the current entry, empty for tombstones.
+     */
+    @NotNull
+    ByteBuffer valueView();
+
+    /**
+     * Check whether the current entry is a tombstone.
+     */
+    boolean hasTombstone();
+
+    /**
+     * Get the timestamp of the current entry in nanos.
+     */
+    long ts();
+
+    /**
+     * Get the size of the current entry serialized with {@link ByteBufferUtils#fromTableEntry(TableEntry)}.
+     */
+    default int serializedSize() {
+        final var size = Integer.BYTES + keyView().remaining() + Long.BYTES;
+        return hasTombstone() ? size : size + Integer.BYTES + valueView().remaining();
+    }
+
+    /**
+     * Copy the current entry out of the views.
+     */
+    @NotNull
+    default TableEntry entry() {
+        final var key = ByteBuffer.allocate(keyView().remaining())
+                .put(keyView().duplicate())
+                .flip();
+        if (hasTombstone()) {
+            return TableEntry.from(key, null, true, ts());
+        }
+        return TableEntry.from(key, valueView().slice(), false, ts());
+    }
+
+    /**
+     * Create the cursor over the entries of the iterator.
+     */
+    @NotNull
+    static Cursor of(@NotNull final Iterator<TableEntry> entries) {
+        return new Cursor() {
+            private TableEntry current;
+
+            @Override
+            public boolean advance() {
+                if (!entries.hasNext()) {
+                    current = null;
+                    return false;
+                }
+                current = entries.next();
+                return true;
+            }
+
+            @Override
+            @NotNull
+            public ByteBuffer keyView() {
+                return current.getKey();
+            }
+
+            @Override
+            @NotNull
+            public ByteBuffer valueView() {
+                return current.hasTombstone() ? ByteBufferUtils.emptyBuffer() : current.getValue();
+            }
+
+            @Override
+            public boolean hasTombstone() {
+                return current.hasTombstone();
+            }
+
+            @Override
+            public long ts() {
+                return current.ts();
+            }
+
+            @Override
+            @NotNull
+            public TableEntry entry() {
+                return current;
+            }
+        };
+    }
+
+    /**
+     * Create the iterator over the entries of the cursor, every entry is copied out of the views.
+     */
+    @NotNull
+    static Iterator<TableEntry> toIterator(@NotNull final Cursor cursor) {
+        return new Iterator<>() {
+            private boolean advanced;
+            private boolean hasNext;
+
+            @Override
+            public boolean hasNext() {
+                if (!advanced) {
+                    hasNext = cursor.advance();
+                    advanced = true;
+                }
+                return hasNext;
+            }
+
+            @Override
+            public TableEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                advanced = false;
+                return cursor.entry();
+            }
+        };
+    }
+}
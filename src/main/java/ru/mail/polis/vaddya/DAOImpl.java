@@ -1,15 +1,20 @@
 package ru.mail.polis.vaddya;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.RateLimiter;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.mail.polis.DAO;
 import ru.mail.polis.Iters;
 import ru.mail.polis.Record;
+import ru.mail.polis.WriteBatch;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
@@ -17,154 +22,1262 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+import java.util.function.UnaryOperator;
 
+import static com.google.common.util.concurrent.Uninterruptibles.getUninterruptibly;
 import static java.util.Collections.emptyList;
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+import static java.util.stream.Collectors.toUnmodifiableList;
 import static ru.mail.polis.vaddya.ByteBufferUtils.emptyBuffer;
+import static ru.mail.polis.vaddya.ByteBufferUtils.toHeap;
 
 public class DAOImpl implements DAO {
     private static final String TEMP_SUFFIX = ".tmp";
+    private static final String INDEX_SPILL_SUFFIX = ".index" + TEMP_SUFFIX;
     private static final String FINAL_SUFFIX = ".db";
+    private static final String LOG_SUFFIX = ".log";
     private static final Logger LOG = LoggerFactory.getLogger(DAOImpl.class);
 
-    private final Table memTable = new MemTable();
-    private final List<Table> ssTables;
     private final File root;
-    private final long flushThresholdInBytes;
+    private final Config config;
+    private final Metrics metrics = new Metrics();
+    private final BlockCache blockCache;
+    private final CompactionStrategy compactionStrategy;
+    /**
+     * Throttles writes of background compactions, null if unlimited.
+     */
+    @Nullable
+    @SuppressWarnings("UnstableApiUsage")
+    private final RateLimiter compactionLimiter;
+    private final ExecutorService flusher;
+    private final ExecutorService compactor;
+    /**
+     * Merges the key ranges of split compactions besides the thread running the compaction, null if not split.
+     */
+    @Nullable
+    private final ExecutorService subcompactor;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    @Nullable
+    private final ScheduledExecutorService committer;
+    /**
+     * Writers share the read lock to update the MemTable concurrently,
+     * the write lock is taken to change the set of tables exclusively.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * Signalled with the write lock held every time a frozen MemTable leaves the flush queue.
+     */
+    private final Condition flushed = lock.writeLock().newCondition();
+    /**
+     * Serializes compactions, so that every compaction sees its inputs unchanged until it is published.
+     */
+    private final Lock compactionLock = new ReentrantLock();
+    /**
+     * Serializes changes of the SSTables, so that manifests are written in the order the changes are published.
+     */
+    private final Lock manifestLock = new ReentrantLock();
+    private final AtomicLong nextGeneration = new AtomicLong();
+    /**
+     * Issues the timestamps of the writes and publishes them in order once they are completely applied.
+     */
+    private final Watermark watermark = new Watermark();
+    /**
+     * Version of the last written manifest, guarded by the manifest lock.
+     */
+    private long manifestVersion;
+    /**
+     * Greatest timestamp of the entries ever flushed to the SSTables, guarded by the manifest lock.
+     * Compactions might drop the newest entries, so it is kept in the manifest rather than taken from the tables.
+     */
+    private long flushedTs = Long.MIN_VALUE;
+    private volatile TableSet tables;
+    /**
+     * Log of the current MemTable, replaced together with it under the write lock.
+     */
+    private volatile WriteAheadLog log;
+    private volatile IOException flushFailure;
+    private volatile boolean closed;
 
     /**
      * Creates persistent DAO.
      *
-     * @param root folder to save and read data from
-     * @throws UncheckedIOException if cannot open or read SSTables
+     * @param root   folder to save and read data from
+     * @param config DAO parameters
+     * @throws UncheckedIOException if cannot replay logs, open or read SSTables
      */
     public DAOImpl(
             @NotNull final File root,
-            final long flushThresholdInBytes) {
+            @NotNull final Config config) {
         this.root = root;
-        this.flushThresholdInBytes = flushThresholdInBytes;
-        this.ssTables = Optional.ofNullable(root.list())
+        this.config = config;
+        this.blockCache = new BlockCache(config.blockCacheSizeInBytes());
+        this.compactionStrategy = CompactionStrategy.of(config);
+        this.compactionLimiter = config.compactionBytesPerSecond() == 0
+                ? null
+                : RateLimiter.create(config.compactionBytesPerSecond());
+        final List<Path> orphans;
+        try {
+            final var manifest = Manifest.read(root.toPath());
+            orphans = listOrphans(manifest);
+            install(TableSet.from(newMemTable(), manifest == null ? scanTables() : openTables(manifest)));
+            skipUsedGenerations();
+            if (manifest == null && !tables.ssTables.isEmpty()) {
+                writeManifest(tables.levels);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read manifest in " + root, e);
+        }
+        try {
+            recoverLogs();
+            this.log = createLog();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to recover logs in " + root, e);
+        }
+
+        this.flusher = Executors.newSingleThreadExecutor(daemonThreadFactory("flusher-" + root.getName()));
+        this.compactor = Executors.newSingleThreadExecutor(daemonThreadFactory("compactor-" + root.getName()));
+        this.subcompactor = config.maxSubcompactions() > 1
+                ? Executors.newFixedThreadPool(
+                        config.maxSubcompactions() - 1,
+                        daemonThreadFactory("subcompactor-" + root.getName()))
+                : null;
+        if (config.durability() == Config.Durability.GROUP) {
+            this.committer = Executors.newSingleThreadScheduledExecutor(
+                    daemonThreadFactory("committer-" + root.getName()));
+            this.committer.scheduleWithFixedDelay(
+                    this::groupCommit,
+                    config.groupCommitIntervalMillis(),
+                    config.groupCommitIntervalMillis(),
+                    TimeUnit.MILLISECONDS);
+        } else {
+            this.committer = null;
+        }
+        compactor.execute(() -> deleteOrphans(orphans));
+        scheduleCompaction();
+    }
+
+    @NotNull
+    private static ThreadFactory daemonThreadFactory(@NotNull final String name) {
+        return r -> {
+            final var thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @NotNull
+    private Table newMemTable() {
+        return config.offHeapMemTable() ? new OffHeapMemTable() : new MemTable();
+    }
+
+    /**
+     * Open the tables listed in the manifest without looking at the other files of the directory.
+     */
+    @NotNull
+    private List<List<TableFile>> openTables(@NotNull final Manifest manifest) {
+        nextGeneration.set(manifest.nextGeneration);
+        manifestVersion = manifest.version;
+        flushedTs = manifest.flushedTimestamp;
+        TimeUtils.observe(flushedTs);
+        final var levels = emptyLevels(Math.max(config.maxLevels(), manifest.levels.size()));
+        for (int level = 0; level < manifest.levels.size(); level++) {
+            manifest.levels.get(level).stream()
+                    .map(this::parseTable)
+                    .flatMap(Optional::stream)
+                    .forEach(levels.get(level)::add);
+        }
+        return levels;
+    }
+
+    /**
+     * Open all the tables of a directory without manifest into level 0, ordered by their file names.
+     * Tables named before generations were introduced get the next generations in the same order.
+     */
+    @NotNull
+    private List<List<TableFile>> scanTables() {
+        final var levels = emptyLevels(config.maxLevels());
+        var generation = -1L;
+        for (final var path : listFiles(FINAL_SUFFIX)) {
+            final var name = path.getFileName().toString();
+            final var parsed = parseGeneration(name);
+            generation = parsed > generation ? parsed : generation + 1;
+            parseTable(new Manifest.Record(name, generation, -1, null, null)).ifPresent(levels.get(0)::add);
+        }
+        nextGeneration.set(generation + 1);
+        return levels;
+    }
+
+    /**
+     * Make sure that new files never reuse the name of a file left in the directory, even an orphaned one.
+     */
+    private void skipUsedGenerations() {
+        final var used = Optional.ofNullable(root.list())
+                .map(Arrays::asList)
+                .orElse(emptyList())
+                .stream()
+                .mapToLong(DAOImpl::parseGeneration)
+                .max()
+                .orElse(-1);
+        nextGeneration.accumulateAndGet(used + 1, Math::max);
+    }
+
+    @NotNull
+    private static List<List<TableFile>> emptyLevels(final int count) {
+        final var levels = new ArrayList<List<TableFile>>(count);
+        while (levels.size() < count) {
+            levels.add(new ArrayList<>());
+        }
+        return levels;
+    }
+
+    /**
+     * List the files left by interrupted flushes and compactions, should be called before any file is written.
+     * Tables of a directory without manifest are never considered orphaned. The temporary manifest is left
+     * out, since it is rewritten under the same name while the orphans are removed.
+     */
+    @NotNull
+    private List<Path> listOrphans(@Nullable final Manifest manifest) {
+        final var orphans = new ArrayList<Path>();
+        listFiles(TEMP_SUFFIX).stream()
+                .filter(path -> !path.getFileName().toString().equals(Manifest.TEMP_NAME))
+                .forEach(orphans::add);
+        if (manifest != null) {
+            final var live = manifest.levels.stream()
+                    .flatMap(List::stream)
+                    .map(record -> record.name)
+                    .collect(toSet());
+            listFiles(FINAL_SUFFIX).stream()
+                    .filter(path -> !live.contains(path.getFileName().toString()))
+                    .forEach(orphans::add);
+        }
+        return orphans;
+    }
+
+    /**
+     * Remove the orphaned files, runs in the compactor thread.
+     */
+    private void deleteOrphans(@NotNull final List<Path> orphans) {
+        for (final var path : orphans) {
+            try {
+                Files.deleteIfExists(path);
+                LOG.info("Orphaned file is removed: {}", path);
+            } catch (IOException e) {
+                LOG.error("Unable to remove orphaned file {}: {}", path, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Replay logs left by the previous run into an SSTable, so that they can be removed.
+     *
+     * <p>A log is removed only after its table is published, so a crash or a failed removal might leave
+     * the log of a flushed table behind. Tables are published in the order of their logs and MemTables
+     * never overlap in time, hence the entries not newer than every flushed entry are flushed already
+     * and skipped. The manifest keeps the timestamp of the newest flushed entry even if compactions
+     * dropped it. The rest are newer than every SSTable, so the recovered table becomes the newest one.
+     */
+    private void recoverLogs() throws IOException {
+        final var logs = listFiles(LOG_SUFFIX);
+        if (logs.isEmpty()) {
+            return;
+        }
+
+        // Directories without manifest know the flushed entries from the tables only
+        final var flushed = tables.ssTables.stream()
+                .mapToLong(Table::maxTimestamp)
+                .reduce(flushedTs, Math::max);
+        final var recovered = new MemTable();
+        for (final var path : logs) {
+            final var count = WriteAheadLog.replay(path, entry -> {
+                if (entry.ts() > flushed) {
+                    recovered.put(entry);
+                }
+            });
+            LOG.info("Replayed {} entries from log {}", count, path);
+        }
+        if (recovered.currentSize() > 0) {
+            final var ssTable = writeTable(recovered.cursor(emptyBuffer()), recovered.entriesCount());
+            metrics.bytesFlushed.add(ssTable.sizeInBytes);
+            final var updated = tables.added(ssTable);
+            writeManifest(updated.levels);
+            install(updated);
+        }
+        for (final var path : logs) {
+            Files.delete(path);
+        }
+    }
+
+    @NotNull
+    private WriteAheadLog createLog() throws IOException {
+        final var path = pathTo(fileName(nextGeneration.getAndIncrement(), LOG_SUFFIX));
+        return WriteAheadLog.create(path, config.durability());
+    }
+
+    @NotNull
+    private List<Path> listFiles(@NotNull final String suffix) {
+        return Optional.ofNullable(root.list())
                 .map(Arrays::asList)
                 .orElse(emptyList())
                 .stream()
-                .filter(s -> s.endsWith(FINAL_SUFFIX))
+                .filter(s -> s.endsWith(suffix))
+                .sorted()
                 .map(this::pathTo)
-                .map(this::parseTable)
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .collect(toList());
+                .collect(toUnmodifiableList());
     }
 
     @NotNull
-    private Optional<Table> parseTable(@NotNull final Path path) {
-        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
-            return Optional.of(Table.from(channel));
+    private Optional<TableFile> parseTable(@NotNull final Manifest.Record record) {
+        try {
+            return Optional.of(openTable(record));
         } catch (IOException e) {
-            LOG.error("{}: {}", e.getMessage(), path);
+            LOG.error("{}: {}", e.getMessage(), record.name);
             return Optional.empty();
         }
     }
 
+    /**
+     * Open the table taking its key range from the record if it is known.
+     *
+     * @throws IOException if cannot open the table or it does not match the record
+     */
+    @NotNull
+    private TableFile openTable(@NotNull final Manifest.Record record) throws IOException {
+        try (var channel = FileChannel.open(pathTo(record.name), StandardOpenOption.READ)) {
+            final var table = Table.from(channel, blockCache, config.mapRegionSizeInBytes());
+            // New entries should be newer than the stored ones even if the wall clock went back
+            TimeUtils.observe(table.maxTimestamp());
+            // Tables found without manifest have nothing to be checked against
+            final var known = record.entriesCount >= 0;
+            if (known && (record.entriesCount != table.entriesCount()
+                    || table.generation() >= 0 && table.generation() != record.generation)) {
+                table.close();
+                throw new IOException("Table does not match manifest");
+            }
+            if (record.firstKey == null || record.lastKey == null) {
+                return new TableFile(table, record.name, record.generation, channel.size());
+            }
+            return new TableFile(
+                    table, record.name, record.generation, record.firstKey, record.lastKey, channel.size());
+        }
+    }
+
+    /**
+     * Write the entries to a new table of the next generation and open it.
+     */
+    @NotNull
+    private TableFile writeTable(
+            @NotNull final Cursor entries,
+            final int expectedEntries) throws IOException {
+        final var generation = nextGeneration.getAndIncrement();
+        final var path = flushEntries(entries, expectedEntries, generation);
+        return openTable(new Manifest.Record(path.getFileName().toString(), generation, -1, null, null));
+    }
+
+    /**
+     * Replace the manifest, should be called with the manifest lock held.
+     * Tables become flushed only once the manifest listing them is written.
+     */
+    private void writeManifest(@NotNull final List<List<TableFile>> levels) throws IOException {
+        var flushed = flushedTs;
+        for (final var level : levels) {
+            for (final var file : level) {
+                flushed = Math.max(flushed, file.table.maxTimestamp());
+            }
+        }
+        Manifest.write(root.toPath(), ++manifestVersion, nextGeneration.get(), flushed, levels);
+        flushedTs = flushed;
+    }
+
     @NotNull
     @Override
     public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
-        final var iterators = ssTables.stream()
-                .map(table -> table.iterator(from))
+        return toRecords(cursor(from, null));
+    }
+
+    /**
+     * Tables stop at the upper bound themselves, so the merge ends exactly there.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> range(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        if (to != null && from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+        return toRecords(cursor(from, to));
+    }
+
+    /**
+     * Merges the tables scanned backwards, so that the cost depends on the length of the range only.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> descendingRange(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        if (to != null && from.compareTo(to) >= 0) {
+            return Iters.empty();
+        }
+        return toRecords(snapshotCursor((table, readTs) -> table.descendingCursor(from, to, readTs), true));
+    }
+
+    /**
+     * Get cursor over the live entries with keys from "from" (inclusive) to "to" (exclusive).
+     * Unlike {@link #range(ByteBuffer, ByteBuffer)}, a scan does not create objects per entry.
+     * Views, slices of the value view included, are valid until the cursor is exhausted.
+     *
+     * @param to upper bound, not less than "from", or null if the cursor is unbounded
+     */
+    @NotNull
+    Cursor cursor(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        return snapshotCursor((table, readTs) -> table.cursor(from, to, readTs), false);
+    }
+
+    /**
+     * Merge the cursors of the tables pinned as of the last visible write. Writes made after the cursor
+     * is created are never seen and a batch is seen either completely or not at all. Tables are unpinned
+     * once the cursor is exhausted or collected.
+     */
+    @NotNull
+    private Cursor snapshotCursor(
+            @NotNull final BiFunction<Table, Long, Cursor> cursor,
+            final boolean descending) {
+        final var snapshot = pin();
+        try {
+            final var readTs = watermark.visible();
+            final var cursors = cursors(snapshot, table -> cursor.apply(table, readTs));
+            return new SnapshotCursor(snapshot, new MergingCursor(cursors, true, descending));
+        } catch (RuntimeException e) {
+            snapshot.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Pin the current set of tables, so that the files of its SSTables are kept until it is released.
+     * The watermark should be read after the set is pinned: the tables other than the MemTable
+     * hold only the writes published before.
+     */
+    @NotNull
+    private TableSet pin() {
+        while (true) {
+            final var snapshot = tables;
+            if (snapshot.retain()) {
+                return snapshot;
+            }
+            if (closed) {
+                throw new IllegalStateException("DAO is closed");
+            }
+        }
+    }
+
+    /**
+     * Publish the set of tables replacing the current one, should be called with the write lock held
+     * unless the DAO is being created. The replaced set keeps its tables until its readers release it.
+     */
+    private void install(@NotNull final TableSet updated) {
+        updated.retainTables();
+        final var previous = tables;
+        tables = updated;
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    /**
+     * Get cursors of all the tables of the snapshot ordered from the oldest table to the newest one.
+     */
+    @NotNull
+    private static List<Cursor> cursors(
+            @NotNull final TableSet snapshot,
+            @NotNull final Function<Table, Cursor> cursor) {
+        final var cursors = snapshot.ssTables.stream()
+                .map(cursor)
                 .collect(toList());
-        iterators.add(memTable.iterator(from));
-        final var iterator = mergeIterators(iterators);
-        return Iterators.transform(iterator, e -> Record.of(e.getKey(), e.getValue()));
+        snapshot.flushing.forEach(table -> cursors.add(cursor.apply(table)));
+        cursors.add(cursor.apply(snapshot.memTable));
+        return cursors;
     }
 
-    @SuppressWarnings("UnstableApiUsage")
-    private Iterator<TableEntry> mergeIterators(@NotNull final List<Iterator<TableEntry>> iterators) {
-        final var merged = Iterators.mergeSorted(iterators, TableEntry.COMPARATOR);
-        final var collapsed = Iters.collapseEquals(merged, TableEntry::getKey);
-        return Iterators.filter(collapsed, e -> !e.hasTombstone());
+    /**
+     * Records are copied out of the mapped files, which are unmapped once the cursor releases its tables.
+     */
+    @NotNull
+    private static Iterator<Record> toRecords(@NotNull final Cursor cursor) {
+        return Iterators.transform(Cursor.toIterator(cursor), e -> Record.of(toHeap(e.getKey()), toHeap(e.getValue())));
+    }
+
+    /**
+     * Point lookup probing tables from the newest to the oldest one until the key is found.
+     * SSTables which definitely do not contain the key are skipped.
+     */
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws NoSuchElementException {
+        final var snapshot = pin();
+        try {
+            final var entry = lookup(snapshot, watermark.visible(), key);
+            if (entry == null || entry.hasTombstone()) {
+                throw new NoSuchElementException("Not found");
+            }
+            // The table might be unmapped once released
+            return toHeap(entry.getValue()).asReadOnlyBuffer();
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    @Nullable
+    private TableEntry lookup(
+            @NotNull final TableSet snapshot,
+            final long readTs,
+            @NotNull final ByteBuffer key) {
+        final var entry = snapshot.memTable.get(key, readTs);
+        if (entry != null) {
+            return entry;
+        }
+
+        final var flushing = snapshot.flushing;
+        for (int i = flushing.size() - 1; i >= 0; i--) {
+            final var flushed = flushing.get(i).get(key, readTs);
+            if (flushed != null) {
+                return flushed;
+            }
+        }
+
+        final var ssTables = snapshot.ssTables;
+        for (int i = ssTables.size() - 1; i >= 0; i--) {
+            final var table = ssTables.get(i);
+            if (!table.mightContain(key)) {
+                metrics.bloomFilterSkips.increment();
+                continue;
+            }
+            metrics.bloomFilterHits.increment();
+            final var stored = table.get(key);
+            if (stored != null) {
+                return stored;
+            }
+            metrics.bloomFilterFalsePositives.increment();
+        }
+        return null;
+    }
+
+    /**
+     * Get the runtime counters of the DAO.
+     */
+    @NotNull
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Merge the cursors ordered from the oldest table to the newest one keeping only the newest entry
+     * for every key, the keys removed by tombstones are skipped.
+     */
+    @NotNull
+    private static Cursor mergeCursors(@NotNull final List<Cursor> cursors) {
+        return new MergingCursor(cursors, true, false);
+    }
+
+    /**
+     * Merge the cursors ordered from the oldest table to the newest one keeping only the newest entry
+     * for every key, tombstones included.
+     */
+    @NotNull
+    private static Cursor collapseCursors(@NotNull final List<Cursor> cursors) {
+        return new MergingCursor(cursors, false, false);
     }
 
     @Override
     public void upsert(
             @NotNull final ByteBuffer key,
             @NotNull final ByteBuffer value) throws IOException {
-        memTable.upsert(key.duplicate().asReadOnlyBuffer(), value.duplicate().asReadOnlyBuffer());
-        if (memTable.currentSize() > flushThresholdInBytes) {
-            flushMemTable();
-        }
+        final var readOnlyKey = key.duplicate().asReadOnlyBuffer();
+        final var readOnlyValue = value.duplicate().asReadOnlyBuffer();
+        put(ts -> TableEntry.from(readOnlyKey, readOnlyValue, false, ts));
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
-        memTable.remove(key.duplicate().asReadOnlyBuffer());
-        if (memTable.currentSize() > flushThresholdInBytes) {
-            flushMemTable();
+        final var readOnlyKey = key.duplicate().asReadOnlyBuffer();
+        put(ts -> TableEntry.from(readOnlyKey, emptyBuffer(), true, ts));
+    }
+
+    /**
+     * Log the entry and put it into the MemTable.
+     * Entry takes its timestamp under the lock, so that MemTables never overlap in time.
+     */
+    private void put(@NotNull final LongFunction<TableEntry> entryFactory) throws IOException {
+        final WriteAheadLog currentLog;
+        final long position;
+        lock.readLock().lock();
+        try {
+            final var sequence = watermark.begin(1);
+            try {
+                final var entry = entryFactory.apply(watermark.timestamp(sequence));
+                currentLog = log;
+                position = currentLog.append(entry);
+                tables.memTable.put(entry);
+            } finally {
+                watermark.publish(sequence);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        currentLog.sync(position);
+        scheduleFlushIfExceeds(config.flushThresholdInBytes());
+    }
+
+    /**
+     * Entries of the batch take consecutive timestamps reserved at once and are logged as a single record.
+     * They are put into the MemTable with the write lock held and published together,
+     * so readers see either all of them or none.
+     */
+    @Override
+    public void apply(@NotNull final WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        final var entries = new ArrayList<TableEntry>(batch.size());
+        final WriteAheadLog currentLog;
+        final long position;
+        lock.writeLock().lock();
+        try {
+            final var sequence = watermark.begin(batch.size());
+            try {
+                final var ts = watermark.timestamp(sequence);
+                for (int i = 0; i < batch.size(); i++) {
+                    final var value = batch.value(i);
+                    entries.add(value == null
+                            ? TableEntry.from(batch.key(i), emptyBuffer(), true, ts + i)
+                            : TableEntry.from(batch.key(i), value, false, ts + i));
+                }
+                currentLog = log;
+                position = currentLog.append(entries);
+                final var memTable = tables.memTable;
+                entries.forEach(memTable::put);
+            } finally {
+                watermark.publish(sequence);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        currentLog.sync(position);
+        scheduleFlushIfExceeds(config.flushThresholdInBytes());
+    }
+
+    private void groupCommit() {
+        try {
+            log.force();
+        } catch (IOException e) {
+            LOG.error("Unable to force log: {}", e.getMessage());
         }
     }
 
     @Override
     public void close() throws IOException {
-        if (memTable.currentSize() > 0) {
-            flushMemTable();
+        scheduleFlushIfExceeds(0);
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(1, TimeUnit.MINUTES)) {
+                throw new IOException("Timed out waiting for background flushes");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for background flushes");
+        }
+        // The running compaction is completed, the pending ones are left for the next run
+        closed = true;
+        compactor.shutdown();
+        try {
+            if (!compactor.awaitTermination(1, TimeUnit.MINUTES)) {
+                throw new IOException("Timed out waiting for background compaction");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for background compaction");
+        }
+        if (subcompactor != null) {
+            subcompactor.shutdown();
+        }
+        if (committer != null) {
+            committer.shutdown();
+        }
+
+        log.close();
+        if (tables.memTable.currentSize() == 0) {
+            log.delete();
         }
+        // Tables are unmapped and freed once the iterators still reading them are done. The MemTable accepting
+        // writes is left to the garbage collector, since writes racing with close might still reach it
+        final var current = tables;
+        current.levels.forEach(level -> level.forEach(file -> file.retire(null)));
+        current.flushing.forEach(Table::release);
+        current.release();
+        checkFlushFailure();
     }
 
+    /**
+     * Merge all the SSTables into the deepest non-empty level dropping overwritten entries and tombstones.
+     * Size-tiered compaction keeps every table in level 0, so the result takes the place of the oldest table
+     * there. Tables flushed meanwhile stay in level 0 as the newer ones.
+     */
     @Override
     public void compact() throws IOException {
-        final var iterators = ssTables.stream()
-                .map(table -> table.iterator(emptyBuffer()))
+        compactionLock.lock();
+        try {
+            final var snapshot = tables;
+            final var compacted = new ArrayList<TableFile>();
+            final var sizeTiered = config.compactionStyle() == Config.CompactionStyle.SIZE_TIERED;
+            var level = sizeTiered ? 0 : 1;
+            for (int i = 0; i < snapshot.levels.size(); i++) {
+                compacted.addAll(snapshot.levels.get(i));
+                if (!sizeTiered && !snapshot.levels.get(i).isEmpty()) {
+                    level = Math.max(level, i);
+                }
+            }
+            if (!compacted.isEmpty()) {
+                compactTables(new CompactionPlan(compacted, level, true), null);
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Hand off compaction to the compactor unless it is already pending.
+     */
+    private void scheduleCompaction() {
+        if (compactionScheduled.compareAndSet(false, true)) {
+            compactor.execute(() -> {
+                compactionScheduled.set(false);
+                compactLevels();
+            });
+        }
+    }
+
+    /**
+     * Run compactions picked by the strategy until there is nothing to compact, runs in the compactor thread.
+     */
+    private void compactLevels() {
+        compactionLock.lock();
+        try {
+            while (!closed) {
+                final var plan = compactionStrategy.pick(tables);
+                if (plan == null) {
+                    break;
+                }
+                if (plan.isTrivialMove()) {
+                    publishCompaction(plan.inputs, plan.level, plan.inputs);
+                    LOG.debug("Table {} is moved to level {}", plan.inputs.get(0), plan.level);
+                } else {
+                    compactTables(plan, compactionLimiter);
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to compact tables: {}", e.getMessage());
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Merge the tables into the target level, should be called with the compaction lock held.
+     *
+     * @param limiter throttles the writes, null if unlimited
+     */
+    @SuppressWarnings("UnstableApiUsage")
+    private void compactTables(
+            @NotNull final CompactionPlan plan,
+            @Nullable final RateLimiter limiter) throws IOException {
+        final var compacted = tables.byRecency(plan.inputs);
+        final var expectedEntries = compacted.stream().mapToLong(file -> file.table.entriesCount()).sum();
+        final var expectedBytes = compacted.stream().mapToLong(file -> file.table.currentSize()).sum();
+        // Level 0 is ordered by recency rather than by key, a single table keeps size tiers from repeating
+        final var tableSize = plan.level == 0 ? Long.MAX_VALUE : config.tableSizeInBytes();
+        final List<TableFile> result;
+        if (subcompactor == null || expectedBytes <= tableSize) {
+            result = compactRange(compacted, plan.bottommost, emptyBuffer(), null,
+                    expectedEntries, expectedBytes, tableSize, limiter);
+        } else {
+            // Every range yields a table at least
+            final var parts = (int) Math.min(config.maxSubcompactions(), expectedBytes / tableSize);
+            result = subcompact(compacted, plan, plan.splitKeys(parts),
+                    expectedEntries, expectedBytes, tableSize, limiter);
+        }
+        result.forEach(file -> metrics.bytesCompacted.add(file.sizeInBytes));
+
+        publishCompaction(compacted, plan.level, result);
+        // Readers of the older table sets might still use the files
+        for (final var file : compacted) {
+            metrics.compactedBytesMapped.add(file.sizeInBytes);
+            file.retire(() -> {
+                metrics.compactedBytesMapped.add(-file.sizeInBytes);
+                deleteCompactedFile(pathTo(file.name));
+            });
+        }
+        LOG.debug("Tables {} are compacted into {} at level {}", compacted, result, plan.level);
+    }
+
+    /**
+     * Merge the key range of the tables ordered from the oldest to the newest one into new tables.
+     *
+     * @param to      upper bound (exclusive) or null if the range is unbounded
+     * @param limiter throttles the writes, null if unlimited
+     */
+    @SuppressWarnings("UnstableApiUsage")
+    @NotNull
+    private List<TableFile> compactRange(
+            @NotNull final List<TableFile> compacted,
+            final boolean bottommost,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long expectedEntries,
+            final long expectedBytes,
+            final long tableSize,
+            @Nullable final RateLimiter limiter) throws IOException {
+        final var cursors = compacted.stream()
+                .map(file -> file.table.cursor(from, to))
                 .collect(toList());
-        final var path = flushEntries(mergeIterators(iterators));
+        final var merged = bottommost ? mergeCursors(cursors) : collapseCursors(cursors);
+        return writeTables(merged, expectedEntries, expectedBytes, tableSize, limiter);
+    }
 
-        final var file = path.toFile();
-        Optional.ofNullable(root.listFiles(f -> !f.equals(file)))
-                .map(Arrays::asList)
-                .orElse(emptyList())
-                .forEach(this::deleteCompactedFile);
+    /**
+     * Merge the key ranges between the split keys in parallel, the first range is merged by the calling thread.
+     * The totals of the whole compaction are passed to every range, since the ranges are estimated.
+     *
+     * @return tables of all the ranges ordered by key
+     * @throws IOException if any range fails, the tables written by all of them are removed then
+     */
+    @SuppressWarnings("UnstableApiUsage")
+    @NotNull
+    private List<TableFile> subcompact(
+            @NotNull final List<TableFile> compacted,
+            @NotNull final CompactionPlan plan,
+            @NotNull final List<ByteBuffer> splitKeys,
+            final long expectedEntries,
+            final long expectedBytes,
+            final long tableSize,
+            @Nullable final RateLimiter limiter) throws IOException {
+        final var ranges = new ArrayList<Future<List<TableFile>>>(splitKeys.size());
+        final var result = new ArrayList<TableFile>();
+        Throwable failure = null;
+        try {
+            for (int i = 0; i < splitKeys.size(); i++) {
+                final var from = splitKeys.get(i);
+                final var to = i + 1 < splitKeys.size() ? splitKeys.get(i + 1) : null;
+                ranges.add(subcompactor.submit(() -> compactRange(compacted, plan.bottommost, from, to,
+                        expectedEntries, expectedBytes, tableSize, limiter)));
+            }
+            final var first = splitKeys.isEmpty() ? null : splitKeys.get(0);
+            result.addAll(compactRange(compacted, plan.bottommost, emptyBuffer(), first,
+                    expectedEntries, expectedBytes, tableSize, limiter));
+        } catch (IOException | RuntimeException e) {
+            // Ranges submitted before the failure still complete and are removed below
+            failure = e;
+        }
+        // Every range completes before the compaction lock is released
+        for (final var range : ranges) {
+            try {
+                result.addAll(getUninterruptibly(range));
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                } else {
+                    failure.addSuppressed(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            removeUnpublished(result);
+            Throwables.throwIfInstanceOf(failure, IOException.class);
+            Throwables.throwIfUnchecked(failure);
+            throw new IOException("Subcompaction failed", failure);
+        }
+        if (!splitKeys.isEmpty()) {
+            metrics.subcompactions.add(splitKeys.size() + 1);
+        }
+        return result;
+    }
+
+    /**
+     * Close the tables written by a failed compaction and remove their files, they are never published.
+     */
+    private void removeUnpublished(@NotNull final List<TableFile> written) {
+        written.forEach(file -> file.retire(() -> deleteCompactedFile(pathTo(file.name))));
+    }
+
+    private void publishCompaction(
+            @NotNull final List<TableFile> compacted,
+            final int level,
+            @NotNull final List<TableFile> result) throws IOException {
+        updateTables(current -> current.compacted(compacted, level, result));
+        metrics.compactions.increment();
+    }
+
+    /**
+     * Persist the change of the SSTables to the manifest and publish it.
+     *
+     * <p>Only the changes of SSTables go through here and they are serialized by the manifest lock,
+     * so the update yields the same levels when applied again to swap the tables. The write lock is held
+     * just for the swap, readers never wait and writers are not blocked by the manifest I/O.
+     */
+    private void updateTables(@NotNull final UnaryOperator<TableSet> update) throws IOException {
+        manifestLock.lock();
+        try {
+            writeManifest(update.apply(tables).levels);
+            lock.writeLock().lock();
+            try {
+                // MemTable might have been frozen meanwhile
+                install(update.apply(tables));
+                flushed.signalAll();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            manifestLock.unlock();
+        }
+    }
+
+    /**
+     * Write the entries to as many tables of the configured size as needed.
+     *
+     * @throws IOException if any table fails, the tables already written are removed then
+     */
+    @SuppressWarnings("UnstableApiUsage")
+    @NotNull
+    private List<TableFile> writeTables(
+            @NotNull final Cursor entries,
+            final long expectedEntries,
+            final long expectedBytes,
+            final long tableSize,
+            @Nullable final RateLimiter limiter) throws IOException {
+        // Tables are cut by the serialized size of the entries, which neither the encoded size of the inputs
+        // nor the number of their entries tells, so the filters of the split output are sized once written,
+        // the key hashes kept meanwhile are bounded by the table size
+        final var split = expectedBytes > tableSize;
+        final var result = new ArrayList<TableFile>();
+        try {
+            var remainingEntries = expectedEntries;
+            var hasNext = entries.advance();
+            while (hasNext) {
+                final var tableEntries = new TableCursor(entries, tableSize, limiter);
+                final var expected = split ? -1 : (int) Math.min(Integer.MAX_VALUE, remainingEntries);
+                result.add(writeTable(tableEntries, expected));
+                remainingEntries -= tableEntries.count;
+                hasNext = !tableEntries.exhausted && entries.advance();
+            }
+        } catch (IOException | RuntimeException e) {
+            removeUnpublished(result);
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * Freeze the MemTable and hand it off to the flusher if its size exceeds the threshold.
+     * Blocks while the flush queue is full.
+     */
+    private void scheduleFlushIfExceeds(final long thresholdInBytes) throws IOException {
+        if (tables.memTable.currentSize() <= thresholdInBytes) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            // Another writer could have frozen the table while we were waiting
+            while (tables.memTable.currentSize() > thresholdInBytes) {
+                if (tables.flushing.size() < config.maxFlushQueueSize()) {
+                    final var frozen = tables.memTable;
+                    final var frozenLog = log;
+                    log = createLog();
+                    install(tables.freezeMemTable(newMemTable()));
+                    flusher.execute(() -> flush(frozen, frozenLog));
+                    return;
+                }
+                awaitFlushed();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-        final var table = parseTable(path);
-        ssTables.clear();
-        table.ifPresent(ssTables::add);
+    private void awaitFlushed() throws IOException {
+        checkFlushFailure();
+        try {
+            flushed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for background flush");
+        }
+    }
+
+    private void checkFlushFailure() throws IOException {
+        final var failure = flushFailure;
+        if (failure != null) {
+            throw new IOException("Background flush failed", failure);
+        }
     }
 
-    private void flushMemTable() throws IOException {
-        final var iterator = memTable.iterator(emptyBuffer());
-        final var path = flushEntries(iterator);
+    /**
+     * Write the frozen MemTable to disk, drop its log and schedule compaction, runs in the flusher thread.
+     * Once a flush fails the later MemTables are not flushed either, so that tables are published
+     * in the order of their logs, see {@link #recoverLogs()}.
+     */
+    private void flush(
+            @NotNull final Table frozen,
+            @NotNull final WriteAheadLog frozenLog) {
+        try {
+            // Releases the writers waiting for a group commit of the frozen log
+            frozenLog.close();
+        } catch (IOException e) {
+            LOG.error("Unable to close log: {}", e.getMessage());
+        }
+        if (flushFailure != null) {
+            LOG.error("MemTable is not flushed after a failed flush, its log is kept for recovery");
+            return;
+        }
+
+        try {
+            final var ssTable = writeTable(frozen.cursor(emptyBuffer()), frozen.entriesCount());
+            metrics.bytesFlushed.add(ssTable.sizeInBytes);
+            updateTables(current -> current.flushed(frozen, ssTable));
+            // Freed once the readers of the older table sets are done
+            frozen.release();
+        } catch (IOException e) {
+            LOG.error("Unable to flush MemTable: {}", e.getMessage());
+            lock.writeLock().lock();
+            try {
+                // The frozen table stays in the queue and keeps serving reads
+                flushFailure = e;
+                flushed.signalAll();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return;
+        }
 
-        final var table = parseTable(path);
-        memTable.clear();
-        table.ifPresent(ssTables::add);
+        try {
+            frozenLog.delete();
+        } catch (IOException e) {
+            // Entries of the log are skipped by the recovery, since the table is published
+            LOG.error("Unable to remove flushed log: {}", e.getMessage());
+        }
+
+        scheduleCompaction();
     }
 
     @NotNull
-    private Path flushEntries(@NotNull final Iterator<TableEntry> iterator) throws IOException {
-        final var now = LocalDateTime.now().toString();
-        final var tempPath = pathTo(now + TEMP_SUFFIX);
+    private Path flushEntries(
+            @NotNull final Cursor entries,
+            final int expectedEntries,
+            final long generation) throws IOException {
+        final var tempPath = pathTo(fileName(generation, TEMP_SUFFIX));
         try (var channel = FileChannel.open(tempPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
-            Table.flushEntries(iterator, channel);
+            final var indexSpill = pathTo(fileName(generation, INDEX_SPILL_SUFFIX));
+            Table.flushEntries(entries, expectedEntries, generation, config, channel, indexSpill);
+            // Logs are deleted once the table is flushed, so it should reach the disk first
+            channel.force(true);
         }
 
-        final var finalPath = pathTo(now + FINAL_SUFFIX);
+        final var finalPath = pathTo(fileName(generation, FINAL_SUFFIX));
         Files.move(tempPath, finalPath, StandardCopyOption.ATOMIC_MOVE);
 
         return finalPath;
     }
 
+    /**
+     * Get the name of the file of the given generation, names are padded to sort in the order of generations.
+     */
+    @NotNull
+    private static String fileName(
+            final long generation,
+            @NotNull final String suffix) {
+        return String.format("%019d", generation) + suffix;
+    }
+
+    /**
+     * Parse the generation from the name of a file.
+     *
+     * @return generation or -1 if the file is not named after a generation
+     */
+    private static long parseGeneration(@NotNull final String name) {
+        final var dot = name.lastIndexOf('.');
+        final var stem = dot < 0 ? name : name.substring(0, dot);
+        if (stem.isEmpty() || stem.length() > 19 || !stem.chars().allMatch(Character::isDigit)) {
+            return -1;
+        }
+        return Long.parseLong(stem);
+    }
+
     @NotNull
     private Path pathTo(@NotNull final String name) {
         return Path.of(root.getAbsolutePath(), name);
     }
 
-    private void deleteCompactedFile(@NotNull final File file) {
+    private void deleteCompactedFile(@NotNull final Path file) {
         try {
-            Files.delete(file.toPath());
-            LOG.trace("Table is removed during compaction: {}", file);
+            Files.delete(file);
+            LOG.trace("Compacted table is removed: {}", file);
         } catch (IOException e) {
-            LOG.error("Unable to remove file {} during compaction: {}", file, e.getMessage());
+            LOG.error("Unable to remove compacted file {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Cursor over a pinned set of tables releasing it once exhausted.
+     * An abandoned cursor keeps the set reachable, so that its tables are released once the cursor is collected.
+     */
+    private static final class SnapshotCursor implements Cursor {
+        private final Cursor cursor;
+        @Nullable
+        private TableSet snapshot;
+
+        SnapshotCursor(
+                @NotNull final TableSet snapshot,
+                @NotNull final Cursor cursor) {
+            this.snapshot = snapshot;
+            this.cursor = cursor;
+        }
+
+        @Override
+        public boolean advance() {
+            if (cursor.advance()) {
+                return true;
+            }
+            if (snapshot != null) {
+                snapshot.release();
+                snapshot = null;
+            }
+            return false;
+        }
+
+        @Override
+        @NotNull
+        public ByteBuffer keyView() {
+            return cursor.keyView();
+        }
+
+        @Override
+        @NotNull
+        public ByteBuffer valueView() {
+            return cursor.valueView();
+        }
+
+        @Override
+        public boolean hasTombstone() {
+            return cursor.hasTombstone();
+        }
+
+        @Override
+        public long ts() {
+            return cursor.ts();
+        }
+
+        @Override
+        @NotNull
+        public TableEntry entry() {
+            return cursor.entry();
+        }
+    }
+
+    /**
+     * Entries of a single table written by {@link #writeTables}, taken from the source positioned
+     * at the first of them until the table reaches its size.
+     */
+    @SuppressWarnings("UnstableApiUsage")
+    private static final class TableCursor implements Cursor {
+        private final Cursor source;
+        private final long tableSize;
+        @Nullable
+        private final RateLimiter limiter;
+        private boolean started;
+        private long written;
+        int count;
+        /**
+         * Whether the source has no more entries.
+         */
+        boolean exhausted;
+
+        TableCursor(
+                @NotNull final Cursor source,
+                final long tableSize,
+                @Nullable final RateLimiter limiter) {
+            this.source = source;
+            this.tableSize = tableSize;
+            this.limiter = limiter;
+        }
+
+        @Override
+        public boolean advance() {
+            if (started) {
+                if (written >= tableSize) {
+                    return false;
+                }
+                if (!source.advance()) {
+                    exhausted = true;
+                    return false;
+                }
+            }
+            started = true;
+            final var size = source.serializedSize();
+            if (limiter != null) {
+                limiter.acquire(size);
+            }
+            written += size;
+            count++;
+            return true;
+        }
+
+        @Override
+        @NotNull
+        public ByteBuffer keyView() {
+            return source.keyView();
+        }
+
+        @Override
+        @NotNull
+        public ByteBuffer valueView() {
+            return source.valueView();
+        }
+
+        @Override
+        public boolean hasTombstone() {
+            return source.hasTombstone();
+        }
+
+        @Override
+        public long ts() {
+            return source.ts();
         }
     }
 }
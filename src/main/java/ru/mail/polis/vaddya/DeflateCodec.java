@@ -0,0 +1,69 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codec based on the JDK {@link Deflater}, compact but comparatively slow.
+ */
+final class DeflateCodec implements BlockCodec {
+    static final int ID = 1;
+    static final DeflateCodec INSTANCE = new DeflateCodec();
+
+    private DeflateCodec() {
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    @NotNull
+    public ByteBuffer compress(@NotNull final ByteBuffer raw) {
+        final var deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw.duplicate());
+            deflater.finish();
+            var output = ByteBuffer.allocate(raw.remaining() + raw.remaining() / 64 + 16);
+            while (!deflater.finished()) {
+                if (!output.hasRemaining()) {
+                    output = ByteBuffer.allocate(output.capacity() * 2).put(output.flip());
+                }
+                deflater.deflate(output);
+            }
+            return output.flip();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    @NotNull
+    public ByteBuffer decompress(
+            @NotNull final ByteBuffer compressed,
+            final int rawSize) {
+        final var inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.duplicate());
+            final var output = ByteBuffer.allocate(rawSize);
+            while (output.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(output) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+            if (output.hasRemaining() || !inflater.finished()) {
+                throw new IllegalArgumentException("Invalid compressed block size");
+            }
+            return output.flip();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid compressed block", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Block with full keys and a dense list of entry offsets, written before prefix compression was introduced.
+ *
+ * <p>Block contains:
+ * <ul>
+ * <li> Table entries (mapped to bytes using ByteBufferUtils.fromTableEntry)
+ * <li> List of entry offsets within the block (represented by int value), one for each entry
+ * <li> Number of entries (represented by int value)
+ * </ul>
+ */
+final class DenseBlock implements Block {
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int offsetsStart;
+
+    private DenseBlock(
+            @NotNull final ByteBuffer buffer,
+            final int count,
+            final int offsetsStart) {
+        this.buffer = buffer;
+        this.count = count;
+        this.offsetsStart = offsetsStart;
+    }
+
+    /**
+     * Read block from the buffer holding exactly one block.
+     *
+     * @throws IllegalArgumentException if block format is invalid
+     */
+    @NotNull
+    static DenseBlock from(@NotNull final ByteBuffer buffer) {
+        final var limit = buffer.limit();
+        if (limit < Integer.BYTES) {
+            throw new IllegalArgumentException("Block is too small");
+        }
+        final var count = buffer.getInt(limit - Integer.BYTES);
+        final var offsetsStart = limit - Integer.BYTES - (long) Integer.BYTES * count;
+        if (count <= 0 || offsetsStart < 0) {
+            throw new IllegalArgumentException("Invalid number of entries in block: " + count);
+        }
+        return new DenseBlock(buffer, count, (int) offsetsStart);
+    }
+
+    @Override
+    @NotNull
+    public Iterator<TableEntry> iterator(@NotNull final ByteBuffer from) {
+        return new Iterator<>() {
+            private int position = position(from);
+
+            @Override
+            public boolean hasNext() {
+                return position < count;
+            }
+
+            @Override
+            public TableEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return entryAt(position++);
+            }
+        };
+    }
+
+    @Override
+    @NotNull
+    public Cursor cursor(@NotNull final ByteBuffer from) {
+        return new Cursor() {
+            private final ByteBuffer key = buffer.duplicate();
+            private final ByteBuffer value = buffer.duplicate();
+            private int position = position(from) - 1;
+            private long ts;
+
+            @Override
+            public boolean advance() {
+                if (position + 1 >= count) {
+                    return false;
+                }
+                var offset = offsetAt(++position);
+                final var keySize = buffer.getInt(offset);
+                offset += Integer.BYTES;
+                key.limit(offset + keySize).position(offset);
+                offset += keySize;
+                ts = buffer.getLong(offset);
+                offset += Long.BYTES;
+                if (ts < 0) {
+                    value.limit(offset).position(offset);
+                } else {
+                    value.limit(offset + Integer.BYTES + buffer.getInt(offset)).position(offset + Integer.BYTES);
+                }
+                return true;
+            }
+
+            @Override
+            @NotNull
+            public ByteBuffer keyView() {
+                return key;
+            }
+
+            @Override
+            @NotNull
+            public ByteBuffer valueView() {
+                return value;
+            }
+
+            @Override
+            public boolean hasTombstone() {
+                return ts < 0;
+            }
+
+            @Override
+            public long ts() {
+                return ts < 0 ? -ts : ts;
+            }
+        };
+    }
+
+    @Override
+    @NotNull
+    public Iterator<TableEntry> descendingIterator(@Nullable final ByteBuffer to) {
+        return new Iterator<>() {
+            private int position = (to == null ? count : position(to)) - 1;
+
+            @Override
+            public boolean hasNext() {
+                return position >= 0;
+            }
+
+            @Override
+            public TableEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return entryAt(position--);
+            }
+        };
+    }
+
+    @Override
+    @Nullable
+    public TableEntry get(@NotNull final ByteBuffer key) {
+        final var position = search(key);
+        return position < 0 ? null : entryAt(position);
+    }
+
+    @Override
+    public int sizeInBytes() {
+        return buffer.limit();
+    }
+
+    @NotNull
+    private TableEntry entryAt(final int position) {
+        return ByteBufferUtils.toTableEntry(buffer, offsetAt(position));
+    }
+
+    private int position(@NotNull final ByteBuffer key) {
+        final var position = search(key);
+        return position < 0 ? -position - 1 : position;
+    }
+
+    /**
+     * Binary search of the key without materializing the probed keys.
+     *
+     * @return position of the key if present, otherwise (-(insertion point) - 1)
+     */
+    private int search(@NotNull final ByteBuffer key) {
+        var left = 0;
+        var right = count - 1;
+        while (left <= right) {
+            final var mid = left + (right - left) / 2;
+            final var cmp = compareKeyAt(mid, key);
+            if (cmp < 0) {
+                left = mid + 1;
+            } else if (cmp > 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -left - 1;
+    }
+
+    private int compareKeyAt(
+            final int position,
+            @NotNull final ByteBuffer key) {
+        final var offset = offsetAt(position);
+        final var keySize = buffer.getInt(offset);
+        return ByteBufferUtils.compare(buffer, offset + Integer.BYTES, keySize, key);
+    }
+
+    private int offsetAt(final int position) {
+        return buffer.getInt(offsetsStart + Integer.BYTES * position);
+    }
+}
@@ -0,0 +1,155 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks the next compaction of the leveled strategy.
+ *
+ * <p>Level 0 is compacted into level 1 once it holds too many tables. Every deeper level is allowed to be
+ * {@link Config#levelSizeMultiplier()} times larger than the previous one, a table of an oversized level
+ * is merged with the overlapping tables of the next level. Tables of a level are picked round-robin by key,
+ * so every byte is rewritten about the size multiplier times per level.
+ *
+ * <p>Once all levels are within their limits, the table with the largest share of tombstones above
+ * {@link Config#tombstoneCompactionRatio()} is compacted on its own: rewritten in place without its tombstones
+ * if no deeper level overlaps it, or merged into the next level otherwise.
+ */
+final class LeveledCompaction implements CompactionStrategy {
+    private final Config config;
+    /**
+     * Last key compacted at every level, the next table to compact follows it.
+     */
+    private final ByteBuffer[] pointers;
+
+    LeveledCompaction(@NotNull final Config config) {
+        this.config = config;
+        this.pointers = new ByteBuffer[config.maxLevels()];
+    }
+
+    /**
+     * Pick the most urgent compaction, not thread-safe.
+     *
+     * @return compaction plan or null if all levels are within their limits and no table has too many tombstones
+     */
+    @Override
+    @Nullable
+    public CompactionPlan pick(@NotNull final TableSet tables) {
+        var bestLevel = -1;
+        var bestScore = 1.0;
+        final var levelZeroScore = (double) tables.levels.get(0).size() / config.level0CompactionTrigger();
+        if (levelZeroScore >= bestScore) {
+            bestLevel = 0;
+            bestScore = levelZeroScore;
+        }
+        var maxSize = (double) config.levelBaseSizeInBytes();
+        for (int level = 1; level < config.maxLevels() - 1; level++) {
+            final var score = tables.levelSize(level) / maxSize;
+            if (score > bestScore) {
+                bestLevel = level;
+                bestScore = score;
+            }
+            maxSize *= config.levelSizeMultiplier();
+        }
+
+        if (bestLevel < 0) {
+            return pickTombstones(tables);
+        }
+        final List<TableFile> inputs = new ArrayList<>();
+        if (bestLevel == 0) {
+            inputs.addAll(tables.levels.get(0));
+        } else {
+            inputs.add(next(tables.levels.get(bestLevel), bestLevel));
+        }
+        return plan(tables, inputs, bestLevel + 1);
+    }
+
+    @Nullable
+    private CompactionPlan pickTombstones(@NotNull final TableSet tables) {
+        TableFile best = null;
+        var bestLevel = -1;
+        var bestRatio = config.tombstoneCompactionRatio();
+        for (int level = 1; level < tables.levels.size(); level++) {
+            for (final var file : tables.levels.get(level)) {
+                final var ratio = file.tombstoneRatio();
+                if (ratio > bestRatio) {
+                    best = file;
+                    bestLevel = level;
+                    bestRatio = ratio;
+                }
+            }
+        }
+
+        if (best == null) {
+            return null;
+        }
+        // The deepest level is always bottommost, so the next level exists otherwise
+        if (CompactionPlan.isBottommost(tables, bestLevel, best.firstKey, best.lastKey)) {
+            return new CompactionPlan(List.of(best), bestLevel, true, true);
+        }
+        final List<TableFile> inputs = new ArrayList<>();
+        inputs.add(best);
+        return plan(tables, inputs, bestLevel + 1);
+    }
+
+    /**
+     * Complete the inputs with the overlapping tables of the target level.
+     */
+    @NotNull
+    private static CompactionPlan plan(
+            @NotNull final TableSet tables,
+            @NotNull final List<TableFile> inputs,
+            final int level) {
+        var from = inputs.get(0).firstKey;
+        var to = inputs.get(0).lastKey;
+        for (final var input : inputs) {
+            from = min(from, input.firstKey);
+            to = max(to, input.lastKey);
+        }
+        for (final var file : tables.levels.get(level)) {
+            if (file.overlaps(from, to)) {
+                inputs.add(file);
+                from = min(from, file.firstKey);
+                to = max(to, file.lastKey);
+            }
+        }
+
+        return new CompactionPlan(inputs, level, CompactionPlan.isBottommost(tables, level, from, to));
+    }
+
+    @NotNull
+    private TableFile next(
+            @NotNull final List<TableFile> files,
+            final int level) {
+        final var pointer = pointers[level];
+        var next = files.get(0);
+        if (pointer != null) {
+            for (final var file : files) {
+                if (file.firstKey.compareTo(pointer) > 0) {
+                    next = file;
+                    break;
+                }
+            }
+        }
+        pointers[level] = next.lastKey;
+        return next;
+    }
+
+    @NotNull
+    private static ByteBuffer min(
+            @NotNull final ByteBuffer left,
+            @NotNull final ByteBuffer right) {
+        return left.compareTo(right) <= 0 ? left : right;
+    }
+
+    @NotNull
+    private static ByteBuffer max(
+            @NotNull final ByteBuffer left,
+            @NotNull final ByteBuffer right) {
+        return left.compareTo(right) >= 0 ? left : right;
+    }
+}
@@ -0,0 +1,184 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Pure Java codec producing the LZ4 block format: fast single-pass greedy matching
+ * over a small hash table of 4-byte sequences, trading ratio for speed.
+ *
+ * <p>Compressed data is a list of sequences, each consisting of:
+ * <ul>
+ * <li> Token (1 byte), high 4 bits are the literals length and low 4 bits are the match length minus 4,
+ * value 15 means that the length continues in the following bytes
+ * <li> Literals length continuation, bytes are added until one is less than 255
+ * <li> Literals
+ * <li> Match offset back from the current position (2 bytes, little-endian), absent in the last sequence
+ * <li> Match length continuation, bytes are added until one is less than 255
+ * </ul>
+ */
+final class Lz4Codec implements BlockCodec {
+    static final int ID = 2;
+    static final Lz4Codec INSTANCE = new Lz4Codec();
+
+    private static final int MIN_MATCH = 4;
+    /**
+     * The last literals are never part of a match, as in the reference implementation.
+     */
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int MIN_HASH_LOG = 8;
+    private static final int MAX_HASH_LOG = 12;
+    private static final int RUN_MASK = 0x0F;
+
+    private Lz4Codec() {
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    @NotNull
+    public ByteBuffer compress(@NotNull final ByteBuffer raw) {
+        final var src = raw.hasArray() ? raw.array() : toArray(raw);
+        final var base = raw.hasArray() ? raw.arrayOffset() + raw.position() : 0;
+        final var length = raw.remaining();
+        final var dst = new byte[length + length / 255 + 16];
+        // Table big enough to find most matches of a block, there is no point in more slots than positions
+        final var hashLog = Math.max(MIN_HASH_LOG,
+                Math.min(MAX_HASH_LOG, Integer.SIZE - Integer.numberOfLeadingZeros(length) - 2));
+        final var table = new int[1 << hashLog];
+        final var input = ByteBuffer.wrap(src).order(ByteOrder.LITTLE_ENDIAN);
+
+        var dp = 0;
+        var anchor = base;
+        var position = base;
+        final var end = base + length;
+        final var matchLimit = end - LAST_LITERALS;
+        // Table stores positions relative to the base shifted by one, so that zero means empty
+        while (position < end - MATCH_FIND_LIMIT) {
+            final var sequence = input.getInt(position);
+            final var hash = (sequence * -1640531535) >>> (Integer.SIZE - hashLog);
+            final var candidate = base + table[hash] - 1;
+            table[hash] = position - base + 1;
+            if (candidate < base || position - candidate > MAX_OFFSET || input.getInt(candidate) != sequence) {
+                position++;
+                continue;
+            }
+
+            var matchLength = MIN_MATCH;
+            while (position + matchLength < matchLimit && src[candidate + matchLength] == src[position + matchLength]) {
+                matchLength++;
+            }
+
+            final var literals = position - anchor;
+            final var tokenPosition = dp++;
+            dp = writeLength(dst, dp, literals);
+            System.arraycopy(src, anchor, dst, dp, literals);
+            dp += literals;
+            final var offset = position - candidate;
+            dst[dp++] = (byte) offset;
+            dst[dp++] = (byte) (offset >>> 8);
+            dp = writeLength(dst, dp, matchLength - MIN_MATCH);
+            final var matchToken = Math.min(matchLength - MIN_MATCH, RUN_MASK);
+            dst[tokenPosition] = (byte) (Math.min(literals, RUN_MASK) << 4 | matchToken);
+
+            position += matchLength;
+            anchor = position;
+        }
+
+        final var literals = end - anchor;
+        final var tokenPosition = dp++;
+        dp = writeLength(dst, dp, literals);
+        System.arraycopy(src, anchor, dst, dp, literals);
+        dp += literals;
+        dst[tokenPosition] = (byte) (Math.min(literals, RUN_MASK) << 4);
+
+        return ByteBuffer.wrap(dst, 0, dp);
+    }
+
+    @Override
+    @NotNull
+    public ByteBuffer decompress(
+            @NotNull final ByteBuffer compressed,
+            final int rawSize) {
+        final var src = toArray(compressed);
+        final var dst = new byte[rawSize];
+        var sp = 0;
+        var dp = 0;
+        try {
+            while (true) {
+                final var token = src[sp++] & 0xFF;
+
+                var literals = token >>> 4;
+                if (literals == RUN_MASK) {
+                    int next;
+                    do {
+                        next = src[sp++] & 0xFF;
+                        literals += next;
+                    } while (next == 0xFF);
+                }
+                System.arraycopy(src, sp, dst, dp, literals);
+                sp += literals;
+                dp += literals;
+                if (sp == src.length) {
+                    break;
+                }
+
+                final var offset = (src[sp++] & 0xFF) | (src[sp++] & 0xFF) << 8;
+                var matchLength = token & RUN_MASK;
+                if (matchLength == RUN_MASK) {
+                    int next;
+                    do {
+                        next = src[sp++] & 0xFF;
+                        matchLength += next;
+                    } while (next == 0xFF);
+                }
+                matchLength += MIN_MATCH;
+
+                var match = dp - offset;
+                if (offset == 0 || match < 0 || dp + matchLength > rawSize) {
+                    throw new IllegalArgumentException("Invalid match in compressed block");
+                }
+                // Byte by byte, since the match might overlap the bytes being copied
+                for (int i = 0; i < matchLength; i++) {
+                    dst[dp++] = dst[match++];
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid compressed block", e);
+        }
+        if (dp != rawSize) {
+            throw new IllegalArgumentException("Invalid compressed block size");
+        }
+        return ByteBuffer.wrap(dst);
+    }
+
+    private static int writeLength(
+            @NotNull final byte[] dst,
+            final int position,
+            final int length) {
+        var dp = position;
+        if (length >= RUN_MASK) {
+            var rest = length - RUN_MASK;
+            while (rest >= 0xFF) {
+                dst[dp++] = (byte) 0xFF;
+                rest -= 0xFF;
+            }
+            dst[dp++] = (byte) rest;
+        }
+        return dp;
+    }
+
+    @NotNull
+    private static byte[] toArray(@NotNull final ByteBuffer buffer) {
+        final var array = new byte[buffer.remaining()];
+        buffer.duplicate().get(array);
+        return array;
+    }
+}
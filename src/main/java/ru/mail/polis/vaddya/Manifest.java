@@ -0,0 +1,274 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent list of live SSTables and their levels, rewritten atomically on every change.
+ *
+ * <p>Manifest contains:
+ * <ul>
+ * <li> Magic number (int Manifest.MAGIC)
+ * <li> Version of the manifest incremented on every change (8 bytes)
+ * <li> Generation of the next table (8 bytes)
+ * <li> Greatest timestamp of the entries ever flushed (8 bytes)
+ * <li> Number of tables (represented by int value)
+ * <li> Tables in the order of {@link TableSet#levels}, each consisting of:
+ * <ul>
+ * <li> Level of the table (4 bytes)
+ * <li> Generation of the table (8 bytes)
+ * <li> Number of entries in the table (8 bytes)
+ * <li> Size of the file name (4 bytes)
+ * <li> File name in UTF-8 padded with zeroes (Manifest.NAME_SIZE bytes)
+ * <li> Size of the first key (4 bytes) and the first key
+ * <li> Size of the last key (4 bytes) and the last key
+ * </ul>
+ * Key range of tables with a key longer than Manifest.MAX_KEY_SIZE is not stored, both sizes are -1 then.
+ * <li> CRC32 checksum of everything above (4 bytes)
+ * </ul>
+ *
+ * <p>File names are padded, so the manifest size depends only on the number of tables and their key ranges.
+ */
+final class Manifest {
+    static final String NAME = "manifest";
+    static final String TEMP_NAME = NAME + ".tmp";
+    private static final int MAGIC = 0x4D414E33;
+    private static final int NAME_SIZE = 64;
+    private static final int MAX_KEY_SIZE = 1024;
+    private static final int HEADER_SIZE = Integer.BYTES * 2 + Long.BYTES * 3;
+    private static final String INVALID_FORMAT = "Invalid manifest format";
+
+    /**
+     * Number of changes the manifest went through.
+     */
+    final long version;
+    /**
+     * Generation to be assigned to the next table, greater than the generation of every listed table.
+     */
+    final long nextGeneration;
+    /**
+     * Greatest timestamp of the entries ever flushed to the SSTables, kept once compactions drop them,
+     * or Long.MIN_VALUE if nothing is flushed yet.
+     */
+    final long flushedTimestamp;
+    /**
+     * Tables of every level, ordered the same way as in {@link TableSet#levels}.
+     */
+    @NotNull
+    final List<List<Record>> levels;
+
+    /**
+     * Table as it is listed in the manifest.
+     */
+    static final class Record {
+        @NotNull
+        final String name;
+        final long generation;
+        final long entriesCount;
+        /**
+         * Key range of the table, null if it is not known from the manifest.
+         */
+        @Nullable
+        final ByteBuffer firstKey;
+        @Nullable
+        final ByteBuffer lastKey;
+
+        Record(
+                @NotNull final String name,
+                final long generation,
+                final long entriesCount,
+                @Nullable final ByteBuffer firstKey,
+                @Nullable final ByteBuffer lastKey) {
+            this.name = name;
+            this.generation = generation;
+            this.entriesCount = entriesCount;
+            this.firstKey = firstKey;
+            this.lastKey = lastKey;
+        }
+    }
+
+    private Manifest(
+            final long version,
+            final long nextGeneration,
+            final long flushedTimestamp,
+            @NotNull final List<List<Record>> levels) {
+        this.version = version;
+        this.nextGeneration = nextGeneration;
+        this.flushedTimestamp = flushedTimestamp;
+        this.levels = Collections.unmodifiableList(levels);
+    }
+
+    /**
+     * Read the tables of every level.
+     *
+     * @return manifest or null if there is no manifest in the directory
+     * @throws IOException if cannot read the manifest or it is corrupted
+     */
+    @Nullable
+    static Manifest read(@NotNull final Path root) throws IOException {
+        final byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(root.resolve(NAME));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        final var buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < Integer.BYTES * 3) {
+            throw new IOException(INVALID_FORMAT);
+        }
+        final var crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - Integer.BYTES);
+        if ((int) crc.getValue() != buffer.getInt(bytes.length - Integer.BYTES)) {
+            throw new IOException(INVALID_FORMAT);
+        }
+        buffer.limit(bytes.length - Integer.BYTES);
+
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException(INVALID_FORMAT);
+            }
+
+            final var version = buffer.getLong();
+            final var nextGeneration = buffer.getLong();
+            final var flushedTimestamp = buffer.getLong();
+            final var count = buffer.getInt();
+            final var levels = new ArrayList<List<Record>>();
+            for (int i = 0; i < count; i++) {
+                final var level = buffer.getInt();
+                final var generation = buffer.getLong();
+                final var entriesCount = buffer.getLong();
+                final var name = readName(buffer);
+                final var firstKey = readKey(buffer);
+                final var lastKey = readKey(buffer);
+                if (level < 0 || generation < 0 || generation >= nextGeneration || entriesCount < 0) {
+                    throw new IOException(INVALID_FORMAT);
+                }
+                levelOf(levels, level).add(new Record(name, generation, entriesCount, firstKey, lastKey));
+            }
+            if (count < 0 || buffer.hasRemaining()) {
+                throw new IOException(INVALID_FORMAT);
+            }
+            return new Manifest(version, nextGeneration, flushedTimestamp, levels);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException(INVALID_FORMAT, e);
+        }
+    }
+
+    @NotNull
+    private static <T> List<T> levelOf(
+            @NotNull final List<List<T>> levels,
+            final int level) {
+        while (levels.size() <= level) {
+            levels.add(new ArrayList<>());
+        }
+        return levels.get(level);
+    }
+
+    @NotNull
+    private static String readName(@NotNull final ByteBuffer buffer) throws IOException {
+        final var nameSize = buffer.getInt();
+        if (nameSize <= 0 || nameSize > NAME_SIZE) {
+            throw new IOException(INVALID_FORMAT);
+        }
+        final var name = new String(buffer.array(), buffer.position(), nameSize, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + NAME_SIZE);
+        return name;
+    }
+
+    @Nullable
+    private static ByteBuffer readKey(@NotNull final ByteBuffer buffer) {
+        final var keySize = buffer.getInt();
+        if (keySize == -1) {
+            return null;
+        }
+        final var key = buffer.slice().limit(keySize);
+        buffer.position(buffer.position() + keySize);
+        return key.asReadOnlyBuffer();
+    }
+
+    /**
+     * Replace the manifest with the one listing the given tables.
+     *
+     * @throws IOException if cannot write the manifest
+     */
+    static void write(
+            @NotNull final Path root,
+            final long version,
+            final long nextGeneration,
+            final long flushedTimestamp,
+            @NotNull final List<List<TableFile>> levels) throws IOException {
+        var size = HEADER_SIZE + Integer.BYTES;
+        for (final var level : levels) {
+            for (final var file : level) {
+                size += Integer.BYTES * 4 + Long.BYTES * 2 + NAME_SIZE;
+                if (hasKeyRange(file)) {
+                    size += file.firstKey.remaining() + file.lastKey.remaining();
+                }
+            }
+        }
+
+        final var buffer = ByteBuffer.allocate(size);
+        final var count = levels.stream().mapToInt(List::size).sum();
+        buffer.putInt(MAGIC)
+                .putLong(version)
+                .putLong(nextGeneration)
+                .putLong(flushedTimestamp)
+                .putInt(count);
+        for (int level = 0; level < levels.size(); level++) {
+            for (final var file : levels.get(level)) {
+                final var name = file.name.getBytes(StandardCharsets.UTF_8);
+                if (name.length > NAME_SIZE) {
+                    throw new IOException("Table file name is too long: " + file.name);
+                }
+                buffer.putInt(level)
+                        .putLong(file.generation)
+                        .putLong(file.table.entriesCount())
+                        .putInt(name.length)
+                        .put(name)
+                        .position(buffer.position() + NAME_SIZE - name.length);
+                if (hasKeyRange(file)) {
+                    buffer.putInt(file.firstKey.remaining())
+                            .put(file.firstKey.duplicate())
+                            .putInt(file.lastKey.remaining())
+                            .put(file.lastKey.duplicate());
+                } else {
+                    buffer.putInt(-1).putInt(-1);
+                }
+            }
+        }
+        final var crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+
+        final var tempPath = root.resolve(TEMP_NAME);
+        try (var channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tempPath, root.resolve(NAME), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static boolean hasKeyRange(@NotNull final TableFile file) {
+        return file.firstKey.remaining() <= MAX_KEY_SIZE && file.lastKey.remaining() <= MAX_KEY_SIZE;
+    }
+}
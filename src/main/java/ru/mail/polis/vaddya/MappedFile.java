@@ -0,0 +1,152 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static java.nio.ByteOrder.BIG_ENDIAN;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+
+/**
+ * Read-only file mapped as a sequence of regions, since a single mapping cannot exceed 2 GB.
+ *
+ * <p>Reads within a region are served by views of the mapping. The rare reads crossing a region boundary
+ * are copied to the heap instead, so they stay valid after the file is unmapped.
+ */
+final class MappedFile {
+    private final ByteBuffer[] regions;
+    private final int regionShift;
+    private final long regionMask;
+    private final long size;
+
+    private MappedFile(
+            @NotNull final ByteBuffer[] regions,
+            final int regionShift,
+            final long size) {
+        this.regions = regions;
+        this.regionShift = regionShift;
+        this.regionMask = (1L << regionShift) - 1;
+        this.size = size;
+    }
+
+    /**
+     * Map the whole file.
+     *
+     * @param regionSize size of the regions in bytes, a power of two
+     * @throws IOException if cannot map the file
+     */
+    @NotNull
+    static MappedFile map(
+            @NotNull final FileChannel channel,
+            final int regionSize) throws IOException {
+        if (regionSize <= 0 || Integer.bitCount(regionSize) != 1) {
+            throw new IllegalArgumentException("Region size should be a power of two");
+        }
+        final var size = channel.size();
+        final var regions = new ByteBuffer[(int) ((size + regionSize - 1) / regionSize)];
+        try {
+            for (int i = 0; i < regions.length; i++) {
+                final var start = (long) i * regionSize;
+                regions[i] = channel.map(READ_ONLY, start, Math.min(regionSize, size - start)).order(BIG_ENDIAN);
+            }
+        } catch (IOException e) {
+            unmap(regions);
+            throw e;
+        }
+        return new MappedFile(regions, Integer.numberOfTrailingZeros(regionSize), size);
+    }
+
+    long size() {
+        return size;
+    }
+
+    int getInt(final long offset) {
+        final var region = region(offset);
+        final var position = position(offset);
+        if (Integer.BYTES <= region.limit() - position) {
+            return region.getInt(position);
+        }
+        return slice(offset, Integer.BYTES).getInt(0);
+    }
+
+    long getLong(final long offset) {
+        final var region = region(offset);
+        final var position = position(offset);
+        if (Long.BYTES <= region.limit() - position) {
+            return region.getLong(position);
+        }
+        return slice(offset, Long.BYTES).getLong(0);
+    }
+
+    /**
+     * Get the bytes of the file from the offset, either as a view of the mapping or as a copy.
+     */
+    @NotNull
+    ByteBuffer slice(
+            final long offset,
+            final int length) {
+        final var region = region(offset);
+        final var position = position(offset);
+        if (length <= region.limit() - position) {
+            return region.duplicate()
+                    .position(position)
+                    .limit(position + length)
+                    .slice();
+        }
+
+        final var copy = ByteBuffer.allocate(length);
+        var current = offset;
+        while (copy.hasRemaining()) {
+            final var from = region(current);
+            final var start = position(current);
+            final var chunk = Math.min(copy.remaining(), from.limit() - start);
+            copy.put(from.duplicate().position(start).limit(start + chunk));
+            current += chunk;
+        }
+        return copy.flip();
+    }
+
+    /**
+     * Compare the bytes of the file from the offset with the key without copying them where possible.
+     */
+    int compare(
+            final long offset,
+            final int length,
+            @NotNull final ByteBuffer key) {
+        final var region = region(offset);
+        final var position = position(offset);
+        if (length <= region.limit() - position) {
+            return ByteBufferUtils.compare(region, position, length, key);
+        }
+        return ByteBufferUtils.compare(slice(offset, length), 0, length, key);
+    }
+
+    /**
+     * Unmap the regions, neither the file nor the views read from it may be accessed afterwards.
+     */
+    void unmap() {
+        unmap(regions);
+    }
+
+    private static void unmap(@NotNull final ByteBuffer[] regions) {
+        for (final var region : regions) {
+            if (region != null) {
+                ByteBufferUtils.unmap(region);
+            }
+        }
+    }
+
+    /**
+     * Kept small to be inlined, the offsets out of the file are rejected by the region array or the region itself.
+     */
+    @NotNull
+    private ByteBuffer region(final long offset) {
+        return regions[(int) (offset >>> regionShift)];
+    }
+
+    private int position(final long offset) {
+        return (int) (offset & regionMask);
+    }
+}
@@ -1,44 +1,162 @@
 package ru.mail.polis.vaddya;
 
+import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.nio.ByteBuffer;
 import java.util.Iterator;
-import java.util.NavigableMap;
-import java.util.TreeMap;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Mutable in-memory table which can be safely updated by many threads at the same time.
+ *
+ * <p>Entries are kept in a lock-free skip list, iterators are weakly consistent:
+ * they never throw ConcurrentModificationException and reflect the state of the table
+ * at some point at or since their creation. Older entries of a key are kept until the table is dropped,
+ * so that the table can be read as of a timestamp.
+ */
 final class MemTable implements Table {
-    private final NavigableMap<ByteBuffer, TableEntry> table = new TreeMap<>();
-    private int currentSize;
+    private final ConcurrentNavigableMap<ByteBuffer, Version> table = new ConcurrentSkipListMap<>();
+    private final AtomicLong currentSize = new AtomicLong();
 
     @Override
     @NotNull
     public Iterator<TableEntry> iterator(@NotNull final ByteBuffer from) {
-        return table.tailMap(from).values().iterator();
+        return newest(table.tailMap(from).values().iterator());
     }
 
     @Override
-    public int currentSize() {
-        return currentSize;
+    @NotNull
+    public Iterator<TableEntry> iterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        return newest((to == null ? table.tailMap(from) : table.subMap(from, to)).values().iterator());
+    }
+
+    @Override
+    @NotNull
+    public Cursor cursor(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long readTs) {
+        final var versions = (to == null ? table.tailMap(from) : table.subMap(from, to)).values().iterator();
+        return Cursor.of(visible(versions, readTs));
+    }
+
+    @Override
+    @NotNull
+    public Iterator<TableEntry> descendingIterator(@Nullable final ByteBuffer to) {
+        return newest((to == null ? table : table.headMap(to)).descendingMap().values().iterator());
+    }
+
+    @Override
+    @NotNull
+    public Iterator<TableEntry> descendingIterator(
+            @Nullable final ByteBuffer to,
+            final long readTs) {
+        return visible((to == null ? table : table.headMap(to)).descendingMap().values().iterator(), readTs);
+    }
+
+    @NotNull
+    private static Iterator<TableEntry> newest(@NotNull final Iterator<Version> versions) {
+        return Iterators.transform(versions, version -> version.entry);
+    }
+
+    @NotNull
+    private static Iterator<TableEntry> visible(
+            @NotNull final Iterator<Version> versions,
+            final long readTs) {
+        return Iterators.filter(Iterators.transform(versions, version -> version.at(readTs)), Objects::nonNull);
     }
 
     @Override
-    public void upsert(
+    @Nullable
+    public TableEntry get(@NotNull final ByteBuffer key) {
+        final var version = table.get(key);
+        return version == null ? null : version.entry;
+    }
+
+    @Override
+    @Nullable
+    public TableEntry get(
             @NotNull final ByteBuffer key,
-            @NotNull final ByteBuffer value) {
-        table.put(key, TableEntry.upsert(key, value));
-        currentSize += Integer.BYTES + key.remaining() + Long.BYTES + Integer.BYTES + value.remaining();
+            final long readTs) {
+        final var version = table.get(key);
+        return version == null ? null : version.at(readTs);
+    }
+
+    @Override
+    public long currentSize() {
+        return currentSize.get();
     }
 
     @Override
-    public void remove(@NotNull final ByteBuffer key) {
-        table.put(key, TableEntry.delete(key));
-        currentSize += Integer.BYTES + key.remaining() + Long.BYTES;
+    public int entriesCount() {
+        return table.size();
+    }
+
+    @Override
+    @NotNull
+    public ByteBuffer firstKey() {
+        return table.firstKey();
     }
 
     @Override
-    public void clear() {
-        table.clear();
-        currentSize = 0;
+    @NotNull
+    public ByteBuffer lastKey() {
+        return table.lastKey();
+    }
+
+    @Override
+    public void put(@NotNull final TableEntry entry) {
+        table.merge(entry.getKey(), new Version(entry, null), (prev, next) -> prev.with(entry));
+        currentSize.addAndGet(ByteBufferUtils.serializedSize(entry));
+    }
+
+    /**
+     * Immutable list of the entries of a key from the newest to the oldest one.
+     */
+    private static final class Version {
+        @NotNull
+        final TableEntry entry;
+        @Nullable
+        final Version older;
+
+        Version(
+                @NotNull final TableEntry entry,
+                @Nullable final Version older) {
+            this.entry = entry;
+            this.older = older;
+        }
+
+        /**
+         * Get the list with the entry inserted by its timestamp, the entry goes first among equal timestamps.
+         */
+        @NotNull
+        Version with(@NotNull final TableEntry inserted) {
+            if (inserted.ts() >= entry.ts()) {
+                return new Version(inserted, this);
+            }
+            return new Version(entry, older == null ? new Version(inserted, null) : older.with(inserted));
+        }
+
+        /**
+         * Get the newest entry written not later than the timestamp.
+         *
+         * @return the entry or null if all the entries are newer
+         */
+        @Nullable
+        TableEntry at(final long readTs) {
+            for (var version = this; version != null; version = version.older) {
+                if (version.entry.ts() <= readTs) {
+                    return version.entry;
+                }
+            }
+            return null;
+        }
     }
 }
@@ -0,0 +1,194 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Merges sorted cursors of table entries in a single pass keeping only the newest entry for every key.
+ *
+ * <p>Cursors are sorted either ascending or descending by key and ordered from the oldest table
+ * to the newest one, the entry of the newest table wins
+ * among entries with the same key. Entry timestamps are never compared. Views of the current entry
+ * are the views of the winning cursor, so merging does not create an object per entry.
+ *
+ * <p>Cursors are the leaves of a tournament (loser) tree: every inner node keeps the cursor which lost
+ * the match played there, so replacing the winner takes a single match per level, about log2(k)
+ * key comparisons for k cursors.
+ */
+final class MergingCursor implements Cursor {
+    private final Cursor[] cursors;
+    private final boolean[] exhausted;
+    /**
+     * Losers of the matches at inner nodes 1..k-1, the overall winner at index 0.
+     * Leaf i is located at node k + i, so the parent of node n is n / 2.
+     */
+    private final int[] tree;
+    private final boolean skipTombstones;
+    private final boolean descending;
+    /**
+     * Copy of the key of the previous entry, used to skip its older entries.
+     */
+    private byte[] previousKey = new byte[64];
+    private ByteBuffer previous = ByteBuffer.wrap(previousKey);
+    private boolean hasPrevious;
+    private boolean started;
+
+    /**
+     * Create the merging cursor.
+     *
+     * @param cursors        cursors of the tables ordered from the oldest to the newest one
+     * @param skipTombstones whether the keys with the newest entry being a tombstone should be skipped
+     * @param descending     whether the cursors are sorted in descending order
+     */
+    MergingCursor(
+            @NotNull final List<Cursor> cursors,
+            final boolean skipTombstones,
+            final boolean descending) {
+        final var count = cursors.size();
+        this.cursors = cursors.toArray(new Cursor[0]);
+        this.exhausted = new boolean[count];
+        this.tree = new int[Math.max(1, count)];
+        this.skipTombstones = skipTombstones;
+        this.descending = descending;
+        for (int i = 0; i < count; i++) {
+            exhausted[i] = !this.cursors[i].advance();
+        }
+        build();
+    }
+
+    /**
+     * Play all the matches bottom-up.
+     */
+    private void build() {
+        final var count = cursors.length;
+        if (count == 0) {
+            return;
+        }
+        final var winners = new int[count * 2];
+        for (int i = 0; i < count; i++) {
+            winners[count + i] = i;
+        }
+        for (int node = count - 1; node >= 1; node--) {
+            final var left = winners[node * 2];
+            final var right = winners[node * 2 + 1];
+            if (beats(left, right)) {
+                winners[node] = left;
+                tree[node] = right;
+            } else {
+                winners[node] = right;
+                tree[node] = left;
+            }
+        }
+        tree[0] = count == 1 ? 0 : winners[1];
+    }
+
+    @Override
+    public boolean advance() {
+        if (cursors.length == 0) {
+            return false;
+        }
+        if (started) {
+            rememberKey();
+            next(tree[0]);
+        }
+        started = true;
+
+        while (true) {
+            final var winner = tree[0];
+            if (exhausted[winner]) {
+                return false;
+            }
+            final var cursor = cursors[winner];
+            if (hasPrevious && cursor.keyView().equals(previous)) {
+                // Older entry of the previous key
+                next(winner);
+                continue;
+            }
+            if (skipTombstones && cursor.hasTombstone()) {
+                rememberKey();
+                next(winner);
+                continue;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Advance the cursor and replay the matches on the path from its leaf to the root.
+     */
+    private void next(final int index) {
+        exhausted[index] = !cursors[index].advance();
+        var winner = index;
+        for (int node = (cursors.length + index) / 2; node >= 1; node /= 2) {
+            final var loser = tree[node];
+            if (beats(loser, winner)) {
+                tree[node] = winner;
+                winner = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    /**
+     * Check whether the first cursor goes before the second one: it has the key going first in the order
+     * of the cursors or the same key from a newer table. Exhausted cursors lose to any other.
+     */
+    private boolean beats(
+            final int first,
+            final int second) {
+        if (exhausted[first]) {
+            return false;
+        }
+        if (exhausted[second]) {
+            return true;
+        }
+        final var cmp = cursors[first].keyView().compareTo(cursors[second].keyView());
+        if (descending) {
+            return cmp > 0 || cmp == 0 && first > second;
+        }
+        return cmp < 0 || cmp == 0 && first > second;
+    }
+
+    private void rememberKey() {
+        final var key = cursors[tree[0]].keyView();
+        final var size = key.remaining();
+        if (size > previousKey.length) {
+            previousKey = new byte[Math.max(size, previousKey.length * 2)];
+            previous = ByteBuffer.wrap(previousKey);
+        }
+        // Key views might be shared with other readers, e.g. the keys of the on-heap MemTable
+        key.duplicate().get(previousKey, 0, size);
+        previous.limit(size).position(0);
+        hasPrevious = true;
+    }
+
+    @Override
+    @NotNull
+    public ByteBuffer keyView() {
+        return cursors[tree[0]].keyView();
+    }
+
+    @Override
+    @NotNull
+    public ByteBuffer valueView() {
+        return cursors[tree[0]].valueView();
+    }
+
+    @Override
+    public boolean hasTombstone() {
+        return cursors[tree[0]].hasTombstone();
+    }
+
+    @Override
+    public long ts() {
+        return cursors[tree[0]].ts();
+    }
+
+    @Override
+    @NotNull
+    public TableEntry entry() {
+        return cursors[tree[0]].entry();
+    }
+}
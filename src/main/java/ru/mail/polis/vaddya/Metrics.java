@@ -0,0 +1,100 @@
+package ru.mail.polis.vaddya;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime counters of {@link DAOImpl}, cheap to update from many threads.
+ */
+public final class Metrics {
+    final LongAdder bloomFilterSkips = new LongAdder();
+    final LongAdder bloomFilterHits = new LongAdder();
+    final LongAdder bloomFilterFalsePositives = new LongAdder();
+    final LongAdder bytesFlushed = new LongAdder();
+    final LongAdder bytesCompacted = new LongAdder();
+    final LongAdder compactions = new LongAdder();
+    final LongAdder subcompactions = new LongAdder();
+    final LongAdder compactedBytesMapped = new LongAdder();
+
+    Metrics() {
+    }
+
+    /**
+     * Get the number of SSTable probes avoided because the Bloom filter ruled the key out.
+     */
+    public long bloomFilterSkips() {
+        return bloomFilterSkips.sum();
+    }
+
+    /**
+     * Get the number of SSTable probes performed because the Bloom filter might contain the key.
+     */
+    public long bloomFilterHits() {
+        return bloomFilterHits.sum();
+    }
+
+    /**
+     * Get the number of SSTable probes which did not find the key the Bloom filter let through.
+     */
+    public long bloomFilterFalsePositives() {
+        return bloomFilterFalsePositives.sum();
+    }
+
+    /**
+     * Get the size of SSTables written by MemTable flushes in bytes.
+     */
+    public long bytesFlushed() {
+        return bytesFlushed.sum();
+    }
+
+    /**
+     * Get the size of SSTables written by compactions in bytes.
+     */
+    public long bytesCompacted() {
+        return bytesCompacted.sum();
+    }
+
+    /**
+     * Get the number of completed compactions including the ones which just moved a table to the next level.
+     */
+    public long compactions() {
+        return compactions.sum();
+    }
+
+    /**
+     * Get the number of key ranges merged in parallel by compactions split into subcompactions.
+     */
+    public long subcompactions() {
+        return subcompactions.sum();
+    }
+
+    /**
+     * Get the size of the compacted SSTables still mapped in bytes. Files of compacted tables are kept
+     * until the readers started before the compaction are done, they are unmapped and deleted then.
+     */
+    public long compactedBytesMapped() {
+        return compactedBytesMapped.sum();
+    }
+
+    /**
+     * Get the ratio of all the bytes written to SSTables to the bytes written by flushes,
+     * 1 means that nothing has been rewritten by compactions yet.
+     */
+    public double writeAmplification() {
+        final var flushed = bytesFlushed();
+        return flushed == 0 ? 1.0 : (double) (flushed + bytesCompacted()) / flushed;
+    }
+
+    @Override
+    public String toString() {
+        return "Metrics{"
+                + "bloomFilterSkips=" + bloomFilterSkips()
+                + ", bloomFilterHits=" + bloomFilterHits()
+                + ", bloomFilterFalsePositives=" + bloomFilterFalsePositives()
+                + ", bytesFlushed=" + bytesFlushed()
+                + ", bytesCompacted=" + bytesCompacted()
+                + ", compactions=" + compactions()
+                + ", subcompactions=" + subcompactions()
+                + ", compactedBytesMapped=" + compactedBytesMapped()
+                + '}';
+    }
+}
@@ -0,0 +1,491 @@
+package ru.mail.polis.vaddya;
+
+import com.google.common.collect.AbstractIterator;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mutable in-memory table keeping its entries off heap, can be safely updated by many threads at the same time.
+ *
+ * <p>Entries are nodes of a lock-free skip list allocated in an {@link Arena}, nodes refer to each other
+ * by arena references, so the heap holds nothing per entry. Nodes are ordered by key and then from
+ * the newest to the oldest timestamp, older entries of a key are kept until the table is dropped and
+ * are returned only when the table is read as of a timestamp. Iterators are weakly consistent
+ * like those of {@link MemTable}.
+ *
+ * <p>The table is referenced by the DAO until it is flushed and by every published {@link TableSet}
+ * containing it. The arena is freed once the last reference is released, so that the direct memory
+ * of a flushed table does not wait for the garbage collector.
+ *
+ * <p>Node contains:
+ * <ul>
+ * <li> Height of the node (4 bytes)
+ * <li> Size of the key (4 bytes)
+ * <li> Size of the value (4 bytes), -1 for tombstones
+ * <li> Padding (4 bytes)
+ * <li> Timestamp (8 bytes)
+ * <li> References to the next nodes, one for each level (8 bytes each)
+ * <li> Key and value
+ * </ul>
+ */
+final class OffHeapMemTable implements Table {
+    private static final VarHandle REFERENCES = MethodHandles.byteBufferViewVarHandle(
+            long[].class, ByteOrder.nativeOrder());
+    private static final int MAX_HEIGHT = 12;
+    private static final int HEIGHT = 0;
+    private static final int KEY_SIZE = 4;
+    private static final int VALUE_SIZE = 8;
+    private static final int TS = 16;
+    private static final int NEXT = 24;
+    private static final int TOMBSTONE = -1;
+    /**
+     * Reference to the head is never stored as the next node, so it marks the end of a level.
+     */
+    private static final long NULL = 0;
+
+    private final Arena arena = new Arena();
+    private final long head;
+    private final AtomicLong currentSize = new AtomicLong();
+    private final AtomicInteger entriesCount = new AtomicInteger();
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    OffHeapMemTable() {
+        this.head = arena.allocate(NEXT + Long.BYTES * MAX_HEIGHT);
+        assert head == NULL;
+        arena.slab(head).putInt(Arena.offset(head) + HEIGHT, MAX_HEIGHT);
+    }
+
+    @Override
+    @NotNull
+    public Iterator<TableEntry> iterator(@NotNull final ByteBuffer from) {
+        return new Iterator<>() {
+            private long node = ceiling(from);
+
+            @Override
+            public boolean hasNext() {
+                return node != NULL;
+            }
+
+            @Override
+            public TableEntry next() {
+                if (node == NULL) {
+                    throw new NoSuchElementException();
+                }
+                final var entry = entry(node);
+                // Skip the older entries of the key
+                var next = OffHeapMemTable.this.next(node, 0);
+                while (next != NULL && compareKeys(next, entry.getKey()) == 0) {
+                    next = OffHeapMemTable.this.next(next, 0);
+                }
+                node = next;
+                return entry;
+            }
+        };
+    }
+
+    @Override
+    @NotNull
+    public Cursor cursor(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        return cursor(from, to, Long.MAX_VALUE);
+    }
+
+    @Override
+    @NotNull
+    public Cursor cursor(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long readTs) {
+        return new Cursor() {
+            private long node = NULL;
+            private long next = ceiling(from);
+            private ByteBuffer slab;
+            private ByteBuffer key;
+            private ByteBuffer value;
+            private boolean tombstone;
+
+            @Override
+            public boolean advance() {
+                next = visible(next, readTs);
+                if (next == NULL || to != null && compareKeys(next, to) >= 0) {
+                    return false;
+                }
+                node = next;
+                final var nodeSlab = arena.slab(node);
+                if (nodeSlab != slab) {
+                    slab = nodeSlab;
+                    key = nodeSlab.asReadOnlyBuffer();
+                    value = nodeSlab.asReadOnlyBuffer();
+                }
+                final var offset = Arena.offset(node);
+                final var keyOffset = offset + NEXT + Long.BYTES * slab.getInt(offset + HEIGHT);
+                final var keyEnd = keyOffset + slab.getInt(offset + KEY_SIZE);
+                final var valueSize = slab.getInt(offset + VALUE_SIZE);
+                key.limit(keyEnd).position(keyOffset);
+                value.limit(keyEnd + Math.max(0, valueSize)).position(keyEnd);
+                tombstone = valueSize == TOMBSTONE;
+
+                // Skip the older entries of the key
+                next = OffHeapMemTable.this.next(node, 0);
+                while (next != NULL && compareKeys(next, key) == 0) {
+                    next = OffHeapMemTable.this.next(next, 0);
+                }
+                return true;
+            }
+
+            @Override
+            @NotNull
+            public ByteBuffer keyView() {
+                return key;
+            }
+
+            @Override
+            @NotNull
+            public ByteBuffer valueView() {
+                return value;
+            }
+
+            @Override
+            public boolean hasTombstone() {
+                return tombstone;
+            }
+
+            @Override
+            public long ts() {
+                return OffHeapMemTable.this.ts(node);
+            }
+
+            @Override
+            @NotNull
+            public TableEntry entry() {
+                return OffHeapMemTable.this.entry(node);
+            }
+        };
+    }
+
+    /**
+     * Every step searches for the previous key from the head, as nodes are linked forward only.
+     */
+    @Override
+    @NotNull
+    public Iterator<TableEntry> descendingIterator(@Nullable final ByteBuffer to) {
+        return descendingIterator(to, Long.MAX_VALUE);
+    }
+
+    @Override
+    @NotNull
+    public Iterator<TableEntry> descendingIterator(
+            @Nullable final ByteBuffer to,
+            final long readTs) {
+        return new AbstractIterator<>() {
+            private long node = lower(to);
+
+            @Override
+            protected TableEntry computeNext() {
+                while (node != NULL) {
+                    final var key = key(node);
+                    // The found node is the oldest entry of the key, the newest one goes first
+                    final var visible = visible(ceiling(key), readTs);
+                    node = lower(key);
+                    if (visible != NULL && compareKeys(visible, key) == 0) {
+                        return entry(visible);
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    @Override
+    @Nullable
+    public TableEntry get(@NotNull final ByteBuffer key) {
+        return get(key, Long.MAX_VALUE);
+    }
+
+    @Override
+    @Nullable
+    public TableEntry get(
+            @NotNull final ByteBuffer key,
+            final long readTs) {
+        final var node = visible(ceiling(key), readTs);
+        return node != NULL && compareKeys(node, key) == 0 ? entry(node) : null;
+    }
+
+    @Override
+    public long currentSize() {
+        return currentSize.get();
+    }
+
+    @Override
+    public int entriesCount() {
+        return entriesCount.get();
+    }
+
+    @Override
+    @NotNull
+    public ByteBuffer firstKey() {
+        final var first = next(head, 0);
+        if (first == NULL) {
+            throw new NoSuchElementException();
+        }
+        return key(first);
+    }
+
+    @Override
+    @NotNull
+    public ByteBuffer lastKey() {
+        var node = head;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            for (var next = next(node, level); next != NULL; next = next(node, level)) {
+                node = next;
+            }
+        }
+        if (node == head) {
+            throw new NoSuchElementException();
+        }
+        return key(node);
+    }
+
+    @Override
+    public void put(@NotNull final TableEntry entry) {
+        final var key = entry.getKey().duplicate();
+        final var value = entry.hasTombstone() ? ByteBufferUtils.emptyBuffer() : entry.getValue().duplicate();
+        final var ts = entry.ts();
+        final var height = randomHeight();
+        final var node = arena.allocate(NEXT + Long.BYTES * height + key.remaining() + value.remaining());
+        final var slab = arena.slab(node);
+        final var offset = Arena.offset(node);
+        slab.putInt(offset + HEIGHT, height)
+                .putInt(offset + KEY_SIZE, key.remaining())
+                .putInt(offset + VALUE_SIZE, entry.hasTombstone() ? TOMBSTONE : value.remaining())
+                .putLong(offset + TS, ts);
+        slab.duplicate()
+                .position(offset + NEXT + Long.BYTES * height)
+                .put(key.duplicate())
+                .put(value);
+
+        final var prevs = new long[MAX_HEIGHT];
+        final var nexts = new long[MAX_HEIGHT];
+        var prev = head;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            prev = findSplice(prev, level, key, ts, prevs, nexts);
+        }
+
+        // Node becomes visible once linked at level 0. Entries of a key are adjacent and the neighbours are
+        // fixed by the link, so only the first of the writers racing to add a key finds no neighbour with it
+        link(node, 0, key, ts, prevs, nexts);
+        if ((prevs[0] == head || compareKeys(prevs[0], key) != 0)
+                && (nexts[0] == NULL || compareKeys(nexts[0], key) != 0)) {
+            entriesCount.incrementAndGet();
+        }
+        // Upper levels only speed up the search
+        for (int level = 1; level < height; level++) {
+            link(node, level, key, ts, prevs, nexts);
+        }
+        currentSize.addAndGet(ByteBufferUtils.serializedSize(entry));
+    }
+
+    @Override
+    public void retain() {
+        references.incrementAndGet();
+    }
+
+    @Override
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        arena.free();
+    }
+
+    /**
+     * Link the node at the level between the found neighbours, the neighbours are found again
+     * if another node was linked between them meanwhile.
+     */
+    private void link(
+            final long node,
+            final int level,
+            @NotNull final ByteBuffer key,
+            final long ts,
+            @NotNull final long[] prevs,
+            @NotNull final long[] nexts) {
+        final var index = Arena.offset(node) + NEXT + Long.BYTES * level;
+        while (true) {
+            REFERENCES.set(arena.slab(node), index, nexts[level]);
+            if (casNext(prevs[level], level, nexts[level], node)) {
+                return;
+            }
+            findSplice(prevs[level], level, key, ts, prevs, nexts);
+        }
+    }
+
+    /**
+     * Find the last node of the level preceding the given key and timestamp starting from the given node.
+     *
+     * @return the preceding node
+     */
+    private long findSplice(
+            final long start,
+            final int level,
+            @NotNull final ByteBuffer key,
+            final long ts,
+            @NotNull final long[] prevs,
+            @NotNull final long[] nexts) {
+        var prev = start;
+        var next = next(prev, level);
+        while (next != NULL && compare(next, key, ts) < 0) {
+            prev = next;
+            next = next(prev, level);
+        }
+        prevs[level] = prev;
+        nexts[level] = next;
+        return prev;
+    }
+
+    /**
+     * Get the newest node with the key greater than or equal to the given one.
+     *
+     * @return the node or NULL if there is no such node
+     */
+    private long ceiling(@NotNull final ByteBuffer key) {
+        var node = head;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            for (var next = next(node, level); next != NULL && compareKeys(next, key) < 0; next = next(node, level)) {
+                node = next;
+            }
+        }
+        return next(node, 0);
+    }
+
+    /**
+     * Get the last node with the key less than the given one.
+     *
+     * @param key upper bound (exclusive) or null to get the last node
+     * @return the node or NULL if there is no such node
+     */
+    private long lower(@Nullable final ByteBuffer key) {
+        var node = head;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            for (var next = next(node, level);
+                    next != NULL && (key == null || compareKeys(next, key) < 0);
+                    next = next(node, level)) {
+                node = next;
+            }
+        }
+        return node == head ? NULL : node;
+    }
+
+    /**
+     * Get the first node starting from the given one written not later than the timestamp,
+     * that is the newest entry of its key visible as of the timestamp.
+     *
+     * @return the node or NULL if there is no such node
+     */
+    private long visible(
+            final long node,
+            final long readTs) {
+        var visible = node;
+        while (visible != NULL && ts(visible) > readTs) {
+            visible = next(visible, 0);
+        }
+        return visible;
+    }
+
+    private static int randomHeight() {
+        final var random = ThreadLocalRandom.current();
+        var height = 1;
+        while (height < MAX_HEIGHT && random.nextInt(4) == 0) {
+            height++;
+        }
+        return height;
+    }
+
+    private long next(
+            final long node,
+            final int level) {
+        return (long) REFERENCES.getAcquire(arena.slab(node), Arena.offset(node) + NEXT + Long.BYTES * level);
+    }
+
+    private boolean casNext(
+            final long node,
+            final int level,
+            final long expected,
+            final long next) {
+        final var index = Arena.offset(node) + NEXT + Long.BYTES * level;
+        return REFERENCES.compareAndSet(arena.slab(node), index, expected, next);
+    }
+
+    /**
+     * Compare the node with the key and the timestamp, newer entries of the same key go first.
+     */
+    private int compare(
+            final long node,
+            @NotNull final ByteBuffer key,
+            final long ts) {
+        final var cmp = compareKeys(node, key);
+        return cmp != 0 ? cmp : Long.compare(ts, ts(node));
+    }
+
+    private long ts(final long node) {
+        return arena.slab(node).getLong(Arena.offset(node) + TS);
+    }
+
+    private int compareKeys(
+            final long node,
+            @NotNull final ByteBuffer key) {
+        final var slab = arena.slab(node);
+        final var offset = Arena.offset(node);
+        final var keyOffset = offset + NEXT + Long.BYTES * slab.getInt(offset + HEIGHT);
+        return ByteBufferUtils.compare(slab, keyOffset, slab.getInt(offset + KEY_SIZE), key);
+    }
+
+    @NotNull
+    private ByteBuffer key(final long node) {
+        final var slab = arena.slab(node);
+        final var offset = Arena.offset(node);
+        final var keyOffset = offset + NEXT + Long.BYTES * slab.getInt(offset + HEIGHT);
+        return slice(slab, keyOffset, slab.getInt(offset + KEY_SIZE));
+    }
+
+    @NotNull
+    private TableEntry entry(final long node) {
+        final var slab = arena.slab(node);
+        final var offset = Arena.offset(node);
+        final var keyOffset = offset + NEXT + Long.BYTES * slab.getInt(offset + HEIGHT);
+        final var keySize = slab.getInt(offset + KEY_SIZE);
+        final var valueSize = slab.getInt(offset + VALUE_SIZE);
+        final var ts = slab.getLong(offset + TS);
+        final var key = slice(slab, keyOffset, keySize);
+        if (valueSize == TOMBSTONE) {
+            return TableEntry.from(key, ByteBufferUtils.emptyBuffer(), true, ts);
+        }
+        return TableEntry.from(key, slice(slab, keyOffset + keySize, valueSize), false, ts);
+    }
+
+    @NotNull
+    private static ByteBuffer slice(
+            @NotNull final ByteBuffer slab,
+            final int offset,
+            final int size) {
+        return slab.duplicate()
+                .position(offset)
+                .limit(offset + size)
+                .slice()
+                .asReadOnlyBuffer();
+    }
+}
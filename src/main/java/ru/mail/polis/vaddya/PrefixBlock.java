@@ -0,0 +1,288 @@
+package ru.mail.polis.vaddya;
+
+import com.google.common.collect.Lists;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Block with keys delta-encoded against the previous key of the block.
+ * Every restart point stores its key in full, so that the block can be searched without decoding all the keys.
+ *
+ * <p>Block contains:
+ * <ul>
+ * <li> Table entries, each consisting of:
+ * <ul>
+ * <li> Size of the prefix shared with the previous key (4 bytes), zero at restart points
+ * <li> Size of the rest of the key (4 bytes)
+ * <li> Rest of the key (N bytes)
+ * <li> Timestamp (8 bytes), if negative then it is a tombstone and neither value size nor value itself is present
+ * <li> Size of the value (4 bytes)
+ * <li> Value of the entry (M bytes)
+ * </ul>
+ * <li> List of restart point offsets within the block (represented by int value)
+ * <li> Number of restart points (represented by int value)
+ * </ul>
+ */
+final class PrefixBlock implements Block {
+    private final ByteBuffer buffer;
+    private final int restartCount;
+    private final int restartsStart;
+
+    private PrefixBlock(
+            @NotNull final ByteBuffer buffer,
+            final int restartCount,
+            final int restartsStart) {
+        this.buffer = buffer;
+        this.restartCount = restartCount;
+        this.restartsStart = restartsStart;
+    }
+
+    /**
+     * Read block from the buffer holding exactly one block.
+     *
+     * @throws IllegalArgumentException if block format is invalid
+     */
+    @NotNull
+    static PrefixBlock from(@NotNull final ByteBuffer buffer) {
+        final var limit = buffer.limit();
+        if (limit < Integer.BYTES) {
+            throw new IllegalArgumentException("Block is too small");
+        }
+        final var restartCount = buffer.getInt(limit - Integer.BYTES);
+        final var restartsStart = limit - Integer.BYTES - (long) Integer.BYTES * restartCount;
+        if (restartCount <= 0 || restartsStart < 0) {
+            throw new IllegalArgumentException("Invalid number of restart points in block: " + restartCount);
+        }
+        return new PrefixBlock(buffer, restartCount, (int) restartsStart);
+    }
+
+    @Override
+    @NotNull
+    public Iterator<TableEntry> iterator(@NotNull final ByteBuffer from) {
+        return seek(from);
+    }
+
+    @Override
+    @NotNull
+    public Cursor cursor(@NotNull final ByteBuffer from) {
+        return seek(from);
+    }
+
+    /**
+     * Keys are delta-encoded, so the entries are decoded forward up to the bound and returned in reverse.
+     */
+    @Override
+    @NotNull
+    public Iterator<TableEntry> descendingIterator(@Nullable final ByteBuffer to) {
+        final var entries = new ArrayList<TableEntry>();
+        final var decoder = new Decoder(restartOffset(0));
+        while (decoder.hasMore()) {
+            decoder.decode();
+            if (to != null && decoder.compareKey(to) >= 0) {
+                break;
+            }
+            entries.add(decoder.entry());
+        }
+        return Lists.reverse(entries).iterator();
+    }
+
+    /**
+     * Position the decoder at the first entry with the key greater than or equal to the given one.
+     */
+    @NotNull
+    private Decoder seek(@NotNull final ByteBuffer from) {
+        final var decoder = new Decoder(restartOffset(Math.max(0, floorRestart(from))));
+        while (decoder.hasMore()) {
+            decoder.decode();
+            if (decoder.compareKey(from) >= 0) {
+                decoder.pending = true;
+                break;
+            }
+        }
+        return decoder;
+    }
+
+    @Override
+    @Nullable
+    public TableEntry get(@NotNull final ByteBuffer key) {
+        final var restart = floorRestart(key);
+        if (restart < 0) {
+            return null;
+        }
+
+        final var decoder = new Decoder(restartOffset(restart));
+        while (decoder.hasMore()) {
+            decoder.decode();
+            final var cmp = decoder.compareKey(key);
+            if (cmp == 0) {
+                return decoder.entry();
+            }
+            if (cmp > 0) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int sizeInBytes() {
+        return buffer.limit();
+    }
+
+    /**
+     * Get the index of the last restart point with the key less than or equal to the given one.
+     *
+     * @return restart point index or -1 if the key is less than the first key of the block
+     */
+    private int floorRestart(@NotNull final ByteBuffer key) {
+        var left = 0;
+        var right = restartCount - 1;
+        while (left <= right) {
+            final var mid = left + (right - left) / 2;
+            final var offset = restartOffset(mid);
+            // Keys at restart points are not shared, so the rest of the key is the whole key
+            final var keySize = buffer.getInt(offset + Integer.BYTES);
+            final var cmp = ByteBufferUtils.compare(buffer, offset + Integer.BYTES * 2, keySize, key);
+            if (cmp < 0) {
+                left = mid + 1;
+            } else if (cmp > 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return left - 1;
+    }
+
+    private int restartOffset(final int restart) {
+        return buffer.getInt(restartsStart + Integer.BYTES * restart);
+    }
+
+    /**
+     * Decodes entries one by one, reconstructing the keys in a reusable array.
+     * Keys are copied out only for the entries returned by the iterator, the cursor exposes the array itself.
+     */
+    private final class Decoder implements Iterator<TableEntry>, Cursor {
+        private final ByteBuffer source = buffer.duplicate();
+        private final ByteBuffer value = buffer.duplicate();
+        private int next;
+        private byte[] key = new byte[64];
+        private ByteBuffer keyBuffer = ByteBuffer.wrap(key);
+        private int keySize;
+        private long ts;
+        private int valueOffset;
+        /**
+         * Whether the decoded entry has not been returned yet.
+         */
+        private boolean pending;
+
+        Decoder(final int offset) {
+            this.next = offset;
+        }
+
+        boolean hasMore() {
+            return next < restartsStart;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return pending || hasMore();
+        }
+
+        @Override
+        public TableEntry next() {
+            if (!advance()) {
+                throw new NoSuchElementException();
+            }
+            return entry();
+        }
+
+        @Override
+        public boolean advance() {
+            if (pending) {
+                pending = false;
+                return true;
+            }
+            if (!hasMore()) {
+                return false;
+            }
+            decode();
+            return true;
+        }
+
+        /**
+         * Decode the entry at the current offset and move to the next one.
+         */
+        void decode() {
+            var position = next;
+            final var shared = buffer.getInt(position);
+            position += Integer.BYTES;
+            final var unshared = buffer.getInt(position);
+            position += Integer.BYTES;
+
+            keySize = shared + unshared;
+            if (keySize > key.length) {
+                key = Arrays.copyOf(key, Math.max(keySize, key.length * 2));
+                keyBuffer = ByteBuffer.wrap(key);
+            }
+            source.position(position).get(key, shared, unshared);
+            position += unshared;
+
+            ts = buffer.getLong(position);
+            position += Long.BYTES;
+            if (ts < 0) {
+                valueOffset = -1;
+            } else {
+                valueOffset = position;
+                position += Integer.BYTES + buffer.getInt(position);
+            }
+            next = position;
+        }
+
+        int compareKey(@NotNull final ByteBuffer other) {
+            return ByteBufferUtils.compare(keyBuffer, 0, keySize, other);
+        }
+
+        @Override
+        @NotNull
+        public ByteBuffer keyView() {
+            return keyBuffer.limit(keySize).position(0);
+        }
+
+        @Override
+        @NotNull
+        public ByteBuffer valueView() {
+            if (ts < 0) {
+                return ByteBufferUtils.emptyBuffer();
+            }
+            final var valueStart = valueOffset + Integer.BYTES;
+            return value.limit(valueStart + buffer.getInt(valueOffset)).position(valueStart);
+        }
+
+        @Override
+        public boolean hasTombstone() {
+            return ts < 0;
+        }
+
+        @Override
+        public long ts() {
+            return ts < 0 ? -ts : ts;
+        }
+
+        @Override
+        @NotNull
+        public TableEntry entry() {
+            final var entryKey = ByteBuffer.wrap(Arrays.copyOf(key, keySize));
+            if (ts < 0) {
+                return TableEntry.from(entryKey, null, true, -ts);
+            }
+            return TableEntry.from(entryKey, valueView().slice(), false, ts);
+        }
+    }
+}
@@ -1,37 +1,89 @@
 package ru.mail.polis.vaddya;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
+/**
+ * SSTable with a dense list of entry offsets, written before block-based tables were introduced.
+ */
 final class SSTable implements Table {
     static final int MAGIC = 0xCAFEFEED;
     static final String INVALID_FORMAT = "Invalid SSTable format";
 
+    private final ByteBuffer mapped;
     private final int entriesCount;
     private final IntBuffer offsets;
     private final ByteBuffer entries;
 
-    public SSTable(
+    private SSTable(
+            @NotNull final ByteBuffer mapped,
             final int entriesCount,
             @NotNull final IntBuffer offsets,
             @NotNull final ByteBuffer entries) {
+        this.mapped = mapped;
         this.entriesCount = entriesCount;
         this.entries = entries;
         this.offsets = offsets;
     }
 
+    /**
+     * Read table from the whole mapped file.
+     *
+     * @throws IOException if table format is invalid
+     */
+    @NotNull
+    static SSTable from(@NotNull final ByteBuffer mapped) throws IOException {
+        final var entriesCount = mapped.getInt(mapped.limit() - Integer.BYTES * 2);
+        if (entriesCount <= 0) {
+            throw new IOException(INVALID_FORMAT);
+        }
+
+        final var footerStart = mapped.limit() - Integer.BYTES * 2;
+        if (footerStart < (long) Integer.BYTES * entriesCount) {
+            throw new IOException(INVALID_FORMAT);
+        }
+        final var offsetsStart = footerStart - Integer.BYTES * entriesCount;
+        final var offsets = mapped.duplicate()
+                .position(offsetsStart)
+                .limit(footerStart)
+                .slice()
+                .asReadOnlyBuffer()
+                .asIntBuffer();
+        final var entries = mapped.duplicate()
+                .position(0)
+                .limit(offsetsStart)
+                .slice()
+                .asReadOnlyBuffer();
+
+        return new SSTable(mapped, entriesCount, offsets, entries);
+    }
+
     @Override
     @NotNull
     public Iterator<TableEntry> iterator(@NotNull final ByteBuffer from) {
+        return iterator(from, null);
+    }
+
+    @Override
+    @NotNull
+    public Iterator<TableEntry> iterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        final var end = to == null ? entriesCount : position(to);
         return new Iterator<>() {
             private int position = position(from);
 
             @Override
             public boolean hasNext() {
-                return position < entriesCount;
+                return position < end;
             }
 
             @Override
@@ -42,16 +94,91 @@ final class SSTable implements Table {
     }
 
     @Override
-    public int currentSize() {
+    @NotNull
+    public Iterator<TableEntry> descendingIterator(@Nullable final ByteBuffer to) {
+        return new Iterator<>() {
+            private int position = (to == null ? entriesCount : position(to)) - 1;
+
+            @Override
+            public boolean hasNext() {
+                return position >= 0;
+            }
+
+            @Override
+            public TableEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return entryAt(position--);
+            }
+        };
+    }
+
+    @Override
+    public long currentSize() {
         return entries.limit();
     }
 
+    @Override
+    public int entriesCount() {
+        return entriesCount;
+    }
+
+    @Override
+    @NotNull
+    public ByteBuffer firstKey() {
+        return entryAt(0).getKey();
+    }
+
+    @Override
+    @NotNull
+    public ByteBuffer lastKey() {
+        return entryAt(entriesCount - 1).getKey();
+    }
+
+    @Override
+    @NotNull
+    public List<ByteBuffer> splitKeys(final int parts) {
+        final var keys = new ArrayList<ByteBuffer>(parts - 1);
+        var previous = 0;
+        for (int part = 1; part < parts; part++) {
+            final var position = (int) ((long) entriesCount * part / parts);
+            if (position > previous) {
+                keys.add(ByteBufferUtils.toHeap(entryAt(position).getKey()));
+                previous = position;
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public void close() {
+        ByteBufferUtils.unmap(mapped);
+    }
+
+    @Override
+    @Nullable
+    public TableEntry get(@NotNull final ByteBuffer key) {
+        final var position = search(key);
+        return position < 0 ? null : entryAt(position);
+    }
+
     private int position(@NotNull final ByteBuffer key) {
+        final var position = search(key);
+        return position < 0 ? -position - 1 : position;
+    }
+
+    /**
+     * Binary search of the key without materializing the probed keys.
+     *
+     * @return position of the key if present, otherwise (-(insertion point) - 1)
+     */
+    private int search(@NotNull final ByteBuffer key) {
         var left = 0;
         var right = entriesCount - 1;
         while (left <= right) {
             final var mid = left + (right - left) / 2;
-            final var cmp = keyAt(mid).compareTo(key);
+            final var cmp = compareKeyAt(mid, key);
             if (cmp < 0) {
                 left = mid + 1;
             } else if (cmp > 0) {
@@ -60,46 +187,19 @@ final class SSTable implements Table {
                 return mid;
             }
         }
-        return left;
+        return -left - 1;
     }
 
-    @NotNull
-    private ByteBuffer keyAt(final int position) {
+    private int compareKeyAt(
+            final int position,
+            @NotNull final ByteBuffer key) {
         final var offset = offsets.get(position);
         final var keySize = entries.getInt(offset);
-        return entries.duplicate()
-                .position(offset + Integer.BYTES)
-                .limit(offset + Integer.BYTES + keySize)
-                .slice();
+        return ByteBufferUtils.compare(entries, offset + Integer.BYTES, keySize, key);
     }
 
     @NotNull
     private TableEntry entryAt(final int position) {
-        var offset = offsets.get(position);
-
-        final var keySize = entries.getInt(offset);
-        offset += Integer.BYTES;
-
-        final var key = entries.duplicate()
-                .position(offset)
-                .limit(offset + keySize)
-                .slice();
-        offset += keySize;
-
-        final var ts = entries.position(offset).getLong();
-        offset += Long.BYTES;
-        if (ts < 0) {
-            return TableEntry.from(key, null, true, -ts);
-        }
-
-        final var valueSize = entries.getInt(offset);
-        offset += Integer.BYTES;
-
-        final var value = entries.duplicate()
-                .position(offset)
-                .limit(offset + valueSize)
-                .slice();
-
-        return TableEntry.from(key, value, false, ts);
+        return ByteBufferUtils.toTableEntry(entries, offsets.get(position));
     }
 }
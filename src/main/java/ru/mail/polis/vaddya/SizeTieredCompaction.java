@@ -0,0 +1,99 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks the next compaction of the size-tiered strategy.
+ *
+ * <p>Tables live in level 0 ordered by recency, a run of at least {@link Config#sizeTieredMinThreshold()}
+ * adjacent tables of similar size is merged into a single table taking their place. Only adjacent tables
+ * are merged, so that the newer table still wins for every key. Tables not larger than a flushed MemTable
+ * form the smallest tier, and the cheapest eligible run is compacted first.
+ *
+ * <p>Only the oldest table can drop its tombstones, so once no run is eligible it is rewritten on its own
+ * if its share of tombstones exceeds {@link Config#tombstoneCompactionRatio()}.
+ */
+final class SizeTieredCompaction implements CompactionStrategy {
+    /**
+     * Maximal number of tables merged at once.
+     */
+    private static final int MAX_THRESHOLD = 32;
+    private static final double BUCKET_LOW = 0.5;
+    private static final double BUCKET_HIGH = 1.5;
+
+    private final Config config;
+
+    SizeTieredCompaction(@NotNull final Config config) {
+        this.config = config;
+    }
+
+    @Override
+    @Nullable
+    public CompactionPlan pick(@NotNull final TableSet tables) {
+        final var files = tables.levels.get(0);
+        var bestStart = -1;
+        var bestCount = 0;
+        var bestAverage = Double.MAX_VALUE;
+        for (int start = 0; start + config.sizeTieredMinThreshold() <= files.size(); start++) {
+            var total = 0L;
+            var end = start;
+            while (end < files.size() && end - start < MAX_THRESHOLD) {
+                final var size = tierSize(files.get(end));
+                if (end > start) {
+                    final var average = (double) total / (end - start);
+                    if (size < average * BUCKET_LOW || size > average * BUCKET_HIGH) {
+                        break;
+                    }
+                }
+                total += size;
+                end++;
+            }
+            final var count = end - start;
+            final var average = (double) total / count;
+            if (count >= config.sizeTieredMinThreshold() && average < bestAverage) {
+                bestStart = start;
+                bestCount = count;
+                bestAverage = average;
+            }
+        }
+        if (bestStart < 0) {
+            return pickTombstones(tables);
+        }
+
+        final var inputs = new ArrayList<>(files.subList(bestStart, bestStart + bestCount));
+        return new CompactionPlan(inputs, 0, bestStart == 0 && isBottommost(tables, inputs));
+    }
+
+    @Nullable
+    private CompactionPlan pickTombstones(@NotNull final TableSet tables) {
+        final var files = tables.levels.get(0);
+        if (files.isEmpty() || files.get(0).tombstoneRatio() <= config.tombstoneCompactionRatio()) {
+            return null;
+        }
+        final var inputs = List.of(files.get(0));
+        return isBottommost(tables, inputs) ? new CompactionPlan(inputs, 0, true, true) : null;
+    }
+
+    private long tierSize(@NotNull final TableFile file) {
+        return Math.max(file.sizeInBytes, config.flushThresholdInBytes());
+    }
+
+    /**
+     * Check whether the run starting from the oldest table of level 0 hides no entries of the deeper levels.
+     */
+    private static boolean isBottommost(
+            @NotNull final TableSet tables,
+            @NotNull final List<TableFile> inputs) {
+        var from = inputs.get(0).firstKey;
+        var to = inputs.get(0).lastKey;
+        for (final var file : inputs) {
+            from = file.firstKey.compareTo(from) < 0 ? file.firstKey : from;
+            to = file.lastKey.compareTo(to) > 0 ? file.lastKey : to;
+        }
+        return CompactionPlan.isBottommost(tables, 0, from, to);
+    }
+}
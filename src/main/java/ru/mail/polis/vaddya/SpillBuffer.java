@@ -0,0 +1,124 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Bytes appended in order, kept on heap up to the buffer size and spilled to a temporary file beyond it.
+ * The buffer grows with the bytes up to its size, the file is created on the first spill and removed on close.
+ */
+final class SpillBuffer implements Closeable {
+    private static final int INITIAL_CAPACITY = 4 * 1024;
+
+    private final Path path;
+    private final int bufferSize;
+    private ByteBuffer buffer;
+    @Nullable
+    private FileChannel channel;
+    private long spilled;
+
+    /**
+     * Create an empty buffer.
+     *
+     * @param path       path of the temporary file, it should not exist
+     * @param bufferSize number of bytes kept on heap
+     */
+    SpillBuffer(
+            @NotNull final Path path,
+            final int bufferSize) {
+        this.path = path;
+        this.bufferSize = bufferSize;
+        this.buffer = ByteBuffer.allocate(Math.min(INITIAL_CAPACITY, bufferSize));
+    }
+
+    void append(@NotNull final ByteBuffer bytes) throws IOException {
+        final var src = bytes.duplicate();
+        while (src.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+                if (buffer.capacity() < bufferSize) {
+                    final var grown = ByteBuffer.allocate((int) Math.min(2L * buffer.capacity(), bufferSize));
+                    buffer = grown.put(buffer.flip());
+                } else {
+                    spill();
+                }
+            }
+            final var chunk = Math.min(src.remaining(), buffer.remaining());
+            buffer.put(src.duplicate().limit(src.position() + chunk));
+            src.position(src.position() + chunk);
+        }
+    }
+
+    /**
+     * Get the number of bytes appended.
+     */
+    long size() {
+        return spilled + buffer.position();
+    }
+
+    /**
+     * Read the appended bytes from the position until the destination is full or the bytes are over.
+     */
+    void read(
+            final long position,
+            @NotNull final ByteBuffer dst) throws IOException {
+        var current = position;
+        while (dst.hasRemaining() && current < spilled) {
+            final var part = dst.duplicate().limit(dst.position() + (int) Math.min(dst.remaining(), spilled - current));
+            final var read = channel.read(part, current);
+            if (read < 0) {
+                throw new IOException("Unexpected end of spill file " + path);
+            }
+            dst.position(part.position());
+            current += read;
+        }
+        if (dst.hasRemaining() && current < size()) {
+            final var start = (int) (current - spilled);
+            final var chunk = Math.min(dst.remaining(), buffer.position() - start);
+            dst.put(buffer.duplicate().position(start).limit(start + chunk));
+        }
+    }
+
+    /**
+     * Write all the appended bytes to the channel at its position.
+     */
+    void writeTo(@NotNull final FileChannel target) throws IOException {
+        var position = 0L;
+        while (position < spilled) {
+            position += channel.transferTo(position, spilled - position, target);
+        }
+        final var rest = buffer.duplicate().flip();
+        while (rest.hasRemaining()) {
+            target.write(rest);
+        }
+    }
+
+    private void spill() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(
+                    path,
+                    StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            spilled += channel.write(buffer, spilled);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -1,17 +1,28 @@
 package ru.mail.polis.vaddya;
 
+import com.google.common.collect.AbstractIterator;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.ArrayList;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
 
 import static java.nio.ByteOrder.BIG_ENDIAN;
 import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
 
-interface Table {
+/**
+ * Sorted table entries, either mutable in memory or stored in a file.
+ * Tables stored in files keep them mapped until closed.
+ */
+interface Table extends Closeable {
     /**
      * Get iterator over the table entries starting from the given key.
      */
@@ -19,36 +30,249 @@ interface Table {
     Iterator<TableEntry> iterator(@NotNull ByteBuffer from);
 
     /**
-     * Get current size of the table entries in bytes.
+     * Get iterator over the table entries with keys from "from" (inclusive) to "to" (exclusive).
+     * The iterator stops at the bound without reading entries past it where the table allows.
+     *
+     * @param to upper bound, not less than "from", or null if the iterator is unbounded
+     */
+    @NotNull
+    default Iterator<TableEntry> iterator(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        final var entries = iterator(from);
+        if (to == null) {
+            return entries;
+        }
+        return new AbstractIterator<>() {
+            @Override
+            protected TableEntry computeNext() {
+                if (entries.hasNext()) {
+                    final var entry = entries.next();
+                    if (entry.getKey().compareTo(to) < 0) {
+                        return entry;
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    /**
+     * Get cursor over the table entries starting from the given key.
      */
-    int currentSize();
+    @NotNull
+    default Cursor cursor(@NotNull final ByteBuffer from) {
+        return cursor(from, null);
+    }
 
     /**
-     * Insert a value into the table using the given key.
+     * Get cursor over the table entries with keys from "from" (inclusive) to "to" (exclusive).
      *
-     * @throws UnsupportedOperationException if table is immutable
+     * @param to upper bound, not less than "from", or null if the cursor is unbounded
+     */
+    @NotNull
+    default Cursor cursor(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) {
+        return Cursor.of(iterator(from, to));
+    }
+
+    /**
+     * Get cursor over the entries with keys from "from" (inclusive) to "to" (exclusive) as of the timestamp:
+     * the newest entry of every key among the ones written not later than it.
+     * Immutable tables are complete before any snapshot of them is taken, so they ignore the timestamp.
+     *
+     * @param to     upper bound, not less than "from", or null if the cursor is unbounded
+     * @param readTs timestamp of the snapshot
+     */
+    @NotNull
+    default Cursor cursor(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long readTs) {
+        return cursor(from, to);
+    }
+
+    /**
+     * Get iterator over the table entries with keys less than the given one in descending order.
+     *
+     * @param to upper bound (exclusive) or null to start from the greatest key
+     */
+    @NotNull
+    Iterator<TableEntry> descendingIterator(@Nullable ByteBuffer to);
+
+    /**
+     * Get iterator over the table entries with keys less than the given one in descending order
+     * as of the timestamp, see {@link #cursor(ByteBuffer, ByteBuffer, long)}.
+     *
+     * @param to     upper bound (exclusive) or null to start from the greatest key
+     * @param readTs timestamp of the snapshot
+     */
+    @NotNull
+    default Iterator<TableEntry> descendingIterator(
+            @Nullable final ByteBuffer to,
+            final long readTs) {
+        return descendingIterator(to);
+    }
+
+    /**
+     * Get cursor over the table entries with keys from "from" (inclusive) to "to" (exclusive)
+     * in descending order as of the timestamp, see {@link #cursor(ByteBuffer, ByteBuffer, long)}.
+     *
+     * @param to     upper bound or null to start from the greatest key
+     * @param readTs timestamp of the snapshot
+     */
+    @NotNull
+    default Cursor descendingCursor(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            final long readTs) {
+        final var entries = descendingIterator(to, readTs);
+        return Cursor.of(new AbstractIterator<>() {
+            @Override
+            protected TableEntry computeNext() {
+                if (entries.hasNext()) {
+                    final var entry = entries.next();
+                    if (entry.getKey().compareTo(from) >= 0) {
+                        return entry;
+                    }
+                }
+                return endOfData();
+            }
+        });
+    }
+
+    /**
+     * Get the entry (either a value or a tombstone) with exactly the given key.
+     *
+     * @return the entry or null if the table has no entry with such key
      */
-    default void upsert(
+    @Nullable
+    TableEntry get(@NotNull ByteBuffer key);
+
+    /**
+     * Get the entry with exactly the given key as of the timestamp, see {@link #cursor(ByteBuffer, ByteBuffer, long)}.
+     *
+     * @param readTs timestamp of the snapshot
+     * @return the entry or null if the table has no entry with such key written not later than the timestamp
+     */
+    @Nullable
+    default TableEntry get(
             @NotNull final ByteBuffer key,
-            @NotNull final ByteBuffer value) {
-        throw new UnsupportedOperationException("Table is immutable");
+            final long readTs) {
+        return get(key);
+    }
+
+    /**
+     * Get current size of the table entries in bytes.
+     */
+    long currentSize();
+
+    /**
+     * Get the number of entries in the table, might take linear time for mutable tables.
+     */
+    int entriesCount();
+
+    /**
+     * Get the number of tombstones among the entries of the table.
+     *
+     * @return number of tombstones or -1 if the table does not know it
+     */
+    default int tombstoneCount() {
+        return -1;
     }
 
     /**
-     * Remove a value from the table using the given key.
+     * Get the generation the table was written with.
      *
-     * @throws UnsupportedOperationException if table is immutable
+     * @return generation or -1 if the table does not know it
      */
-    default void remove(@NotNull final ByteBuffer key) {
-        throw new UnsupportedOperationException("Table is immutable");
+    default long generation() {
+        return -1;
     }
 
     /**
-     * Perform table clearing.
+     * Get the greatest timestamp of the table entries, might take linear time.
+     *
+     * @return timestamp or Long.MIN_VALUE if the table is empty
+     */
+    default long maxTimestamp() {
+        var max = Long.MIN_VALUE;
+        final var entries = iterator(ByteBufferUtils.emptyBuffer());
+        while (entries.hasNext()) {
+            max = Math.max(max, entries.next().ts());
+        }
+        return max;
+    }
+
+    /**
+     * Get the smallest key of the table.
+     *
+     * @throws java.util.NoSuchElementException if the table is empty
+     */
+    @NotNull
+    ByteBuffer firstKey();
+
+    /**
+     * Get the greatest key of the table.
+     *
+     * @throws java.util.NoSuchElementException if the table is empty
+     */
+    @NotNull
+    ByteBuffer lastKey();
+
+    /**
+     * Get the keys splitting the table into parts of about the same size, without reading the entries
+     * where the table allows.
+     *
+     * @param parts number of parts
+     * @return ascending keys, fewer than parts - 1 if the table is too small or cannot pick them cheaply
+     */
+    @NotNull
+    default List<ByteBuffer> splitKeys(final int parts) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Check whether the table might contain an entry with the given key.
+     * False means that the table definitely has no such entry.
+     */
+    default boolean mightContain(@NotNull final ByteBuffer key) {
+        return true;
+    }
+
+    /**
+     * Take a reference to the table. Tables freeing their memory explicitly are closed once every reference
+     * is released, the one taken on creation included. Other tables ignore the references,
+     * SSTables are referenced through {@link TableFile}.
+     */
+    default void retain() {
+        // Nothing to count
+    }
+
+    /**
+     * Drop a reference taken on creation or by {@link #retain()}.
+     */
+    default void release() {
+        // Nothing to count
+    }
+
+    /**
+     * Release the resources of the table right away, for example unmap its file.
+     * Neither the table nor the buffers read from it may be accessed afterwards.
+     */
+    @Override
+    default void close() {
+        // Nothing to release
+    }
+
+    /**
+     * Insert the entry (either a value or a tombstone) into the table.
+     * If the table already has an entry with the same key, the one with the greater timestamp wins.
      *
      * @throws UnsupportedOperationException if table is immutable
      */
-    default void clear() {
+    default void put(@NotNull final TableEntry entry) {
         throw new UnsupportedOperationException("Table is immutable");
     }
 
@@ -57,73 +281,258 @@ interface Table {
      *
      * <p>File will contain:
      * <ul>
-     * <li> Table entries (mapped to bytes using ByteBufferUtils.fromTableEntry)
-     * <li> List of offsets (represented by int value), one for each entry
+     * <li> Blocks of table entries with prefix-compressed keys (see {@link PrefixBlock}),
+     * each followed by its CRC32 if checksums are enabled. If compression is enabled, every block is stored as
+     * the block size before compression (represented by int value, -1 if the block is stored as is) and the
+     * block compressed with the codec
+     * <li> Sparse index entries, one for each block: block offset (represented by long value), block size,
+     * first key size and first key
+     * <li> List of index entry offsets (represented by long value), one for each block
+     * <li> Bloom filter bits (represented by long values)
+     * <li> Number of tombstones among the entries (represented by int value)
+     * <li> Greatest timestamp of the entries (represented by long value)
+     * <li> Generation of the table (represented by long value)
+     * <li> Number of Bloom filter longs (represented by int value)
+     * <li> Number of Bloom filter hash functions (represented by int value)
+     * <li> Number of blocks (represented by int value)
      * <li> Number of entries (represented by int value)
-     * <li> Magic number in the end of the file (int Table.MAGIC)
+     * <li> Flags (represented by int value), see BlockSSTable.FLAG_CHECKSUMS, BlockSSTable.FLAG_PREFIX_KEYS,
+     * BlockSSTable.FLAG_MAX_TIMESTAMP, BlockSSTable.FLAG_GENERATION, BlockSSTable.FLAG_LONG_OFFSETS and
+     * BlockSSTable.FLAG_TOMBSTONE_COUNT, the second byte holds the block codec id
+     * (see {@link BlockCodec#id()}) or zero if blocks are not compressed
+     * <li> Magic number in the end of the file (int BlockSSTable.MAGIC)
      * </ul>
      *
-     * @param channel channel to write entries to
+     * @param expectedEntries upper bound of the number of entries used to size the Bloom filter, or -1 if unknown,
+     *                        then the key hashes are kept on heap and the filter is sized once the entries
+     *                        are written
+     * @param generation      generation of the table
+     * @param config          parameters of the blocks, their compression and the Bloom filter
+     * @param channel         channel to write entries to
+     * @param indexSpill      path of the temporary file the index is spilled to if it outgrows
+     *                        {@link Config#indexBufferSizeInBytes()}, so that the heap used does not depend on
+     *                        the size of the table
      * @throws IOException if cannot write data
      */
     static void flushEntries(
-            @NotNull final Iterator<TableEntry> entries,
+            @NotNull final Cursor entries,
+            final int expectedEntries,
+            final long generation,
+            @NotNull final Config config,
+            @NotNull final FileChannel channel,
+            @NotNull final Path indexSpill) throws IOException {
+        final var falsePositiveRate = config.bloomFalsePositiveRate();
+        final var presized = expectedEntries < 0 ? null : BloomFilter.create(expectedEntries, falsePositiveRate);
+        var hashes = presized == null ? new long[1024] : null;
+        final var checksums = config.blockChecksums();
+        final var codec = BlockCodec.of(config.compression());
+        final var builder = new BlockBuilder(config.blockSizeInBytes(), config.blockRestartInterval());
+        try (var index = new SpillBuffer(indexSpill, config.indexBufferSizeInBytes())) {
+            ByteBuffer firstKey = null;
+            var blockOffset = 0L;
+            var offset = 0L;
+            var blockCount = 0;
+            var entriesCount = 0;
+            var tombstoneCount = 0;
+            var maxTimestamp = Long.MIN_VALUE;
+            while (entries.advance()) {
+                final var key = entries.keyView();
+                if (builder.isEmpty()) {
+                    firstKey = ByteBuffer.allocate(key.remaining()).put(key.duplicate()).flip();
+                    blockOffset = offset;
+                }
+                builder.add(entries);
+                if (presized != null) {
+                    presized.add(key);
+                } else {
+                    if (entriesCount == hashes.length) {
+                        hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                    }
+                    hashes[entriesCount] = BloomFilter.hash(key);
+                }
+                entriesCount++;
+                if (entries.hasTombstone()) {
+                    tombstoneCount++;
+                }
+                maxTimestamp = Math.max(maxTimestamp, entries.ts());
+                if (builder.isFull()) {
+                    offset += writeBlock(builder.finish(), codec, checksums, channel);
+                    appendIndexEntry(index, blockOffset, offset, firstKey);
+                    blockCount++;
+                }
+            }
+            if (!builder.isEmpty()) {
+                offset += writeBlock(builder.finish(), codec, checksums, channel);
+                appendIndexEntry(index, blockOffset, offset, firstKey);
+                blockCount++;
+            }
+
+            index.writeTo(channel);
+            writeIndexOffsets(index, blockCount, offset, channel);
+
+            final var bloomFilter = presized != null
+                    ? presized
+                    : BloomFilter.of(hashes, entriesCount, falsePositiveRate);
+
+            channel.write(bloomFilter.toByteBuffer());
+            channel.write(ByteBufferUtils.fromInt(tombstoneCount));
+            channel.write(ByteBufferUtils.fromLong(maxTimestamp));
+            channel.write(ByteBufferUtils.fromLong(generation));
+            channel.write(ByteBufferUtils.fromInt(bloomFilter.size()));
+            channel.write(ByteBufferUtils.fromInt(bloomFilter.hashCount()));
+            channel.write(ByteBufferUtils.fromInt(blockCount));
+            channel.write(ByteBufferUtils.fromInt(entriesCount));
+        }
+        var flags = BlockSSTable.FLAG_PREFIX_KEYS | BlockSSTable.FLAG_MAX_TIMESTAMP | BlockSSTable.FLAG_GENERATION
+                | BlockSSTable.FLAG_LONG_OFFSETS | BlockSSTable.FLAG_TOMBSTONE_COUNT
+                | (checksums ? BlockSSTable.FLAG_CHECKSUMS : 0);
+        if (codec != null) {
+            flags |= codec.id() << BlockSSTable.CODEC_SHIFT;
+        }
+        channel.write(ByteBufferUtils.fromInt(flags));
+        channel.write(ByteBufferUtils.fromInt(BlockSSTable.MAGIC));
+    }
+
+    private static void appendIndexEntry(
+            @NotNull final SpillBuffer index,
+            final long blockOffset,
+            final long blockEnd,
+            @NotNull final ByteBuffer firstKey) throws IOException {
+        final var indexEntry = ByteBuffer.allocate(Long.BYTES + Integer.BYTES * 2 + firstKey.remaining())
+                .putLong(blockOffset)
+                .putInt((int) (blockEnd - blockOffset))
+                .putInt(firstKey.remaining())
+                .put(firstKey.duplicate())
+                .flip();
+        index.append(indexEntry);
+    }
+
+    /**
+     * Write the offsets of the index entries, which are recovered by walking the entries
+     * rather than kept on heap for the whole table.
+     *
+     * @param indexStart offset of the first index entry in the table
+     */
+    private static void writeIndexOffsets(
+            @NotNull final SpillBuffer index,
+            final int count,
+            final long indexStart,
             @NotNull final FileChannel channel) throws IOException {
-        final var offsets = new ArrayList<Integer>();
-        var offset = 0;
-        while (entries.hasNext()) {
-            offsets.add(offset);
-            final var buffer = ByteBufferUtils.fromTableEntry(entries.next());
-            offset += buffer.remaining();
-            channel.write(buffer);
+        final var window = ByteBuffer.allocate((int) Math.min(64 * 1024, index.size())).limit(0);
+        final var offsets = ByteBuffer.allocate(Long.BYTES * Math.min(8 * 1024, count));
+        var windowStart = 0L;
+        var position = 0L;
+        for (int i = 0; i < count; i++) {
+            final var keySizeAt = position + Long.BYTES + Integer.BYTES;
+            if (keySizeAt + Integer.BYTES > windowStart + window.limit()) {
+                window.clear();
+                index.read(keySizeAt, window);
+                window.flip();
+                windowStart = keySizeAt;
+            }
+            if (!offsets.hasRemaining()) {
+                writeFully(offsets.flip(), channel);
+                offsets.clear();
+            }
+            offsets.putLong(indexStart + position);
+            position = keySizeAt + Integer.BYTES + window.getInt((int) (keySizeAt - windowStart));
         }
+        writeFully(offsets.flip(), channel);
+    }
 
-        final var offsetsBuffer = ByteBufferUtils.fromIntList(offsets);
-        channel.write(offsetsBuffer);
+    private static void writeFully(
+            @NotNull final ByteBuffer buffer,
+            @NotNull final FileChannel channel) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
 
-        final var sizeBuffer = ByteBufferUtils.fromInt(offsets.size());
-        channel.write(sizeBuffer);
+    /**
+     * Compress the block if it pays off and write it followed by the checksum.
+     *
+     * @return number of bytes written
+     */
+    private static int writeBlock(
+            @NotNull final ByteBuffer block,
+            @Nullable final BlockCodec codec,
+            final boolean checksum,
+            @NotNull final FileChannel channel) throws IOException {
+        var stored = block;
+        if (codec != null) {
+            final var compressed = codec.compress(block);
+            final var rawSize = block.remaining();
+            final var header = compressed.remaining() < rawSize ? rawSize : -1;
+            final var payload = header < 0 ? block : compressed;
+            stored = ByteBuffer.allocate(Integer.BYTES + payload.remaining())
+                    .putInt(header)
+                    .put(payload)
+                    .flip();
+        }
 
-        final var magicBuffer = ByteBufferUtils.fromInt(SSTable.MAGIC);
-        channel.write(magicBuffer);
+        var written = stored.remaining();
+        if (checksum) {
+            final var crc = new CRC32();
+            crc.update(stored.duplicate());
+            channel.write(stored);
+            channel.write(ByteBufferUtils.fromInt((int) crc.getValue()));
+            written += Integer.BYTES;
+        } else {
+            channel.write(stored);
+        }
+        return written;
     }
 
     /**
-     * Read table from the specified channel.
+     * Read table from the specified channel, the format version is detected by the magic number.
+     * Tables written before blocks were introduced (ending with SSTable.MAGIC) are supported as well,
+     * they never exceed 2 GB and are mapped at once.
      *
-     * @param channel channel to read entries from
+     * @param channel    channel to read entries from
+     * @param blockCache cache to read blocks through
+     * @param regionSize size of the regions block-based tables are mapped with, a power of two
      * @return a table instance
      * @throws IOException if cannot read data or table format is invalid
      */
     @NotNull
-    static Table from(@NotNull final FileChannel channel) throws IOException {
-        if (channel.size() < Integer.BYTES) {
+    static Table from(
+            @NotNull final FileChannel channel,
+            @NotNull final BlockCache blockCache,
+            final int regionSize) throws IOException {
+        final var size = channel.size();
+        if (size < Integer.BYTES * 2) {
             throw new IOException(SSTable.INVALID_FORMAT);
         }
-        final var mapped = channel.map(READ_ONLY, 0, channel.size()).order(BIG_ENDIAN);
-
-        final var magic = mapped.getInt(mapped.limit() - Integer.BYTES);
-        if (magic != SSTable.MAGIC) {
-            throw new IOException(SSTable.INVALID_FORMAT);
+        final var tail = ByteBuffer.allocate(Integer.BYTES);
+        while (tail.hasRemaining()) {
+            if (channel.read(tail, size - Integer.BYTES + tail.position()) < 0) {
+                throw new IOException(SSTable.INVALID_FORMAT);
+            }
         }
 
-        final var entriesCount = mapped.getInt(mapped.limit() - Integer.BYTES * 2);
-        if (entriesCount <= 0 || mapped.limit() < Integer.BYTES + Integer.BYTES * entriesCount) {
-            throw new IOException(SSTable.INVALID_FORMAT);
+        final var magic = tail.getInt(0);
+        switch (magic) {
+            case BlockSSTable.MAGIC:
+                final var file = MappedFile.map(channel, regionSize);
+                try {
+                    return BlockSSTable.from(file, blockCache);
+                } catch (IOException e) {
+                    file.unmap();
+                    throw e;
+                }
+            case SSTable.MAGIC:
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException(SSTable.INVALID_FORMAT);
+                }
+                final var mapped = channel.map(READ_ONLY, 0, size).order(BIG_ENDIAN);
+                try {
+                    return SSTable.from(mapped);
+                } catch (IOException e) {
+                    ByteBufferUtils.unmap(mapped);
+                    throw e;
+                }
+            default:
+                throw new IOException(SSTable.INVALID_FORMAT);
         }
-
-        final var offsets = mapped.duplicate()
-                .position(mapped.limit() - Integer.BYTES * 2 - Integer.BYTES * entriesCount)
-                .limit(mapped.limit() - Integer.BYTES)
-                .slice()
-                .asReadOnlyBuffer()
-                .asIntBuffer();
-        final var entries = mapped.duplicate()
-                .position(0)
-                .limit(mapped.limit() - Integer.BYTES * 2 - Integer.BYTES * entriesCount)
-                .slice()
-                .asReadOnlyBuffer();
-
-        return new SSTable(entriesCount, offsets, entries);
     }
 }
@@ -0,0 +1,112 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ru.mail.polis.vaddya.ByteBufferUtils.toHeap;
+
+/**
+ * SSTable together with the name of its file and the metadata used to plan compactions.
+ *
+ * <p>File is referenced by the DAO while it is live and by every published {@link TableSet} containing it,
+ * so a compacted file is kept until the last reader pinning an older set releases it. The table is closed
+ * once the last reference is dropped, so that its file is unmapped right away.
+ */
+final class TableFile {
+    @NotNull
+    final Table table;
+    @NotNull
+    final String name;
+    /**
+     * Number of the table unique within the directory, newer tables have greater generations.
+     */
+    final long generation;
+    @NotNull
+    final ByteBuffer firstKey;
+    @NotNull
+    final ByteBuffer lastKey;
+    final long sizeInBytes;
+    /**
+     * The live reference is taken on creation and dropped by {@link #retire(Runnable)}.
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+    @Nullable
+    private volatile Runnable cleanup;
+
+    TableFile(
+            @NotNull final Table table,
+            @NotNull final String name,
+            final long generation,
+            final long sizeInBytes) {
+        // Keys outlive the mapping of the file
+        this(table, name, generation, toHeap(table.firstKey()), toHeap(table.lastKey()), sizeInBytes);
+    }
+
+    TableFile(
+            @NotNull final Table table,
+            @NotNull final String name,
+            final long generation,
+            @NotNull final ByteBuffer firstKey,
+            @NotNull final ByteBuffer lastKey,
+            final long sizeInBytes) {
+        this.table = table;
+        this.name = name;
+        this.generation = generation;
+        this.firstKey = firstKey;
+        this.lastKey = lastKey;
+        this.sizeInBytes = sizeInBytes;
+    }
+
+    /**
+     * Check whether the key range of the table intersects with the given inclusive range.
+     */
+    boolean overlaps(
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to) {
+        return firstKey.compareTo(to) <= 0 && lastKey.compareTo(from) >= 0;
+    }
+
+    /**
+     * Get the share of tombstones among the entries of the table, zero if the table does not know it.
+     */
+    double tombstoneRatio() {
+        final var tombstones = table.tombstoneCount();
+        return tombstones <= 0 ? 0.0 : (double) tombstones / table.entriesCount();
+    }
+
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    /**
+     * Drop a reference, the last one closes the table and runs the cleanup.
+     */
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            table.close();
+            final var action = cleanup;
+            if (action != null) {
+                action.run();
+            }
+        }
+    }
+
+    /**
+     * Drop the live reference once the table is no longer published or the DAO is closed,
+     * the table is closed and the cleanup runs as soon as the table sets still containing it are released.
+     *
+     * @param cleanup action to run after the table is closed, e.g. removal of the file, or null if none
+     */
+    void retire(@Nullable final Runnable cleanup) {
+        this.cleanup = cleanup;
+        release();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
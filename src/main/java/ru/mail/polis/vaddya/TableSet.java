@@ -0,0 +1,228 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.ref.Cleaner;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable set of tables forming the DAO state at some point in time.
+ *
+ * <p>Contains the MemTable accepting writes, frozen MemTables waiting to be flushed
+ * and SSTables arranged in levels. Level 0 holds flushed tables ordered from the oldest to the newest one,
+ * their key ranges might overlap. Deeper levels hold tables with disjoint key ranges ordered by key,
+ * every level is older than the previous one.
+ *
+ * <p>Readers pin the set while they use its tables, the set is referenced by the DAO as well until
+ * it is replaced. Once published, the set references its SSTables and MemTables until the last reference to it
+ * is dropped or, if some reader abandons it without releasing, until the set becomes unreachable.
+ */
+final class TableSet {
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    @NotNull
+    final Table memTable;
+    @NotNull
+    final List<Table> flushing;
+    @NotNull
+    final List<List<TableFile>> levels;
+    /**
+     * All the SSTables ordered from the oldest to the newest one, tables of the same level do not overlap.
+     */
+    @NotNull
+    final List<Table> ssTables;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private Cleaner.Cleanable tablesReference;
+
+    private TableSet(
+            @NotNull final Table memTable,
+            @NotNull final List<Table> flushing,
+            @NotNull final List<List<TableFile>> levels) {
+        this.memTable = memTable;
+        this.flushing = Collections.unmodifiableList(flushing);
+        final var unmodifiableLevels = new ArrayList<List<TableFile>>(levels.size());
+        final var allTables = new ArrayList<Table>();
+        for (int level = levels.size() - 1; level >= 0; level--) {
+            levels.get(level).forEach(file -> allTables.add(file.table));
+        }
+        levels.forEach(level -> unmodifiableLevels.add(Collections.unmodifiableList(level)));
+        this.levels = Collections.unmodifiableList(unmodifiableLevels);
+        this.ssTables = Collections.unmodifiableList(allTables);
+    }
+
+    /**
+     * Create the set of the given SSTables and the MemTable.
+     *
+     * @param memTable empty MemTable accepting writes
+     * @param levels   tables of every level, ordered the same way as in {@link #levels}
+     */
+    @NotNull
+    static TableSet from(
+            @NotNull final Table memTable,
+            @NotNull final List<List<TableFile>> levels) {
+        final var copy = new ArrayList<List<TableFile>>(levels.size());
+        levels.forEach(level -> copy.add(new ArrayList<>(level)));
+        return new TableSet(memTable, new ArrayList<>(), copy);
+    }
+
+    /**
+     * Freeze the current MemTable and replace it with the given empty one.
+     */
+    @NotNull
+    TableSet freezeMemTable(@NotNull final Table emptyMemTable) {
+        final var newFlushing = new ArrayList<>(flushing);
+        newFlushing.add(memTable);
+        return new TableSet(emptyMemTable, newFlushing, levels);
+    }
+
+    /**
+     * Replace the frozen MemTable with the SSTable it was flushed to, the SSTable becomes the newest one.
+     */
+    @NotNull
+    TableSet flushed(
+            @NotNull final Table frozen,
+            @NotNull final TableFile ssTable) {
+        final var newFlushing = new ArrayList<>(flushing);
+        if (!newFlushing.remove(frozen)) {
+            throw new IllegalStateException("Table is not being flushed");
+        }
+        return new TableSet(memTable, newFlushing, withTables(List.of(), 0, List.of(ssTable)));
+    }
+
+    /**
+     * Add the SSTable as the newest one.
+     */
+    @NotNull
+    TableSet added(@NotNull final TableFile ssTable) {
+        return new TableSet(memTable, flushing, withTables(List.of(), 0, List.of(ssTable)));
+    }
+
+    /**
+     * Replace the compacted SSTables with the result of their compaction placed into the given level.
+     * Results put into level 0 take the place of the compacted tables of level 0, become the oldest tables
+     * of the level if only deeper tables are compacted, or the newest ones if nothing is.
+     *
+     * @throws IllegalStateException if some of the compacted tables are not present
+     */
+    @NotNull
+    TableSet compacted(
+            @NotNull final Collection<TableFile> compacted,
+            final int level,
+            @NotNull final List<TableFile> result) {
+        return new TableSet(memTable, flushing, withTables(compacted, level, result));
+    }
+
+    /**
+     * Take references to the tables of the set, should be called once the set is published.
+     */
+    void retainTables() {
+        final var files = levels;
+        final var memTables = new ArrayList<>(flushing);
+        memTables.add(memTable);
+        files.forEach(level -> level.forEach(TableFile::retain));
+        memTables.forEach(Table::retain);
+        tablesReference = CLEANER.register(this, () -> {
+            files.forEach(level -> level.forEach(TableFile::release));
+            memTables.forEach(Table::release);
+        });
+    }
+
+    /**
+     * Pin the set unless it is already released.
+     *
+     * @return false if the last reference is already dropped, the current set should be pinned instead
+     */
+    boolean retain() {
+        while (true) {
+            final var count = references.get();
+            if (count == 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drop a reference, the last one releases the SSTables of the set.
+     */
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            // Runs at most once
+            tablesReference.clean();
+        }
+    }
+
+    /**
+     * Order the given tables the same way as {@link #ssTables}, from the oldest to the newest one.
+     */
+    @NotNull
+    List<TableFile> byRecency(@NotNull final Collection<TableFile> files) {
+        final var result = new ArrayList<TableFile>(files.size());
+        for (int level = levels.size() - 1; level >= 0; level--) {
+            for (final var file : levels.get(level)) {
+                if (files.contains(file)) {
+                    result.add(file);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the total size of the level tables in bytes.
+     */
+    long levelSize(final int level) {
+        return levels.get(level).stream()
+                .mapToLong(file -> file.sizeInBytes)
+                .sum();
+    }
+
+    @NotNull
+    private List<List<TableFile>> withTables(
+            @NotNull final Collection<TableFile> removed,
+            final int level,
+            @NotNull final List<TableFile> added) {
+        final var newLevels = new ArrayList<List<TableFile>>(levels.size());
+        var removedCount = 0;
+        var levelZeroPosition = -1;
+        for (final var tables : levels) {
+            final var newTables = new ArrayList<TableFile>(tables.size());
+            for (final var table : tables) {
+                if (removed.contains(table)) {
+                    if (newLevels.isEmpty() && levelZeroPosition < 0) {
+                        levelZeroPosition = newTables.size();
+                    }
+                    removedCount++;
+                } else {
+                    newTables.add(table);
+                }
+            }
+            newLevels.add(newTables);
+        }
+        if (removedCount != removed.size()) {
+            throw new IllegalStateException("Tables are not present: " + removed);
+        }
+        if (levelZeroPosition < 0 && !removed.isEmpty()) {
+            // Deeper tables are older than every table of level 0
+            levelZeroPosition = 0;
+        }
+
+        final var tables = newLevels.get(level);
+        if (level == 0 && levelZeroPosition >= 0) {
+            tables.addAll(levelZeroPosition, added);
+        } else {
+            tables.addAll(added);
+        }
+        if (level > 0) {
+            tables.sort(Comparator.comparing(file -> file.firstKey));
+        }
+        return newLevels;
+    }
+}
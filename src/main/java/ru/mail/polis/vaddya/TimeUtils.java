@@ -1,23 +1,48 @@
 package ru.mail.polis.vaddya;
 
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hybrid logical clock producing strictly increasing timestamps close to the wall clock in nanoseconds.
+ *
+ * <p>Timestamp is the current time in milliseconds scaled to nanoseconds unless it is not greater than
+ * the last issued one, then the last one plus one is issued. Timestamps stay increasing across threads
+ * without locks and across restarts once the clock observes the timestamps already stored.
+ */
 final class TimeUtils {
-    private static int counter;
-    private static long lastMillis;
+    private static final AtomicLong LAST = new AtomicLong();
 
     private TimeUtils() {
     }
 
     /**
-     * Emulate current time in nanoseconds using System.currentTimeMillis and atomic counter
+     * Get the next timestamp, greater than every timestamp issued or observed before.
      */
     static long currentTimeNanos() {
-        synchronized (TimeUtils.class) {
-            final var millis = System.currentTimeMillis();
-            if (lastMillis != millis) {
-                lastMillis = millis;
-                counter = 0;
+        return currentTimeNanos(1);
+    }
+
+    /**
+     * Reserve the given number of consecutive timestamps at once, all of them greater than every timestamp
+     * issued or observed before.
+     *
+     * @return the first of the timestamps
+     */
+    static long currentTimeNanos(final int count) {
+        final var physical = System.currentTimeMillis() * 1_000_000;
+        while (true) {
+            final var last = LAST.get();
+            final var next = physical > last ? physical : last + 1;
+            if (LAST.compareAndSet(last, next + count - 1)) {
+                return next;
             }
-            return lastMillis * 1_000_000 + counter++;
         }
     }
+
+    /**
+     * Make sure that the timestamps issued from now on are greater than the given one.
+     */
+    static void observe(final long timestamp) {
+        LAST.accumulateAndGet(timestamp, Math::max);
+    }
 }
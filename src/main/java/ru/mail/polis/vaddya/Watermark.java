@@ -0,0 +1,97 @@
+package ru.mail.polis.vaddya;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timestamp of the newest write visible to readers.
+ *
+ * <p>Writes take their timestamps here and publish them once they are completely applied. The watermark
+ * only moves up to the newest timestamp below every write still in progress, so readers never see a write
+ * while an older one is missing.
+ *
+ * <p>Nothing is locked: a write claims the next sequence number with a CAS, taking its timestamps between
+ * reading the number and claiming it, so that the timestamps grow with the sequence numbers. Publishing
+ * marks the slot of the number in a ring and moves the head past the published slots, so the watermark
+ * is moved by whichever write completes the published prefix. Writers wait only if the ring is full
+ * of writes in progress.
+ */
+final class Watermark {
+    private static final int SLOTS = 1024;
+    private static final int MASK = SLOTS - 1;
+
+    /**
+     * Sequence number published into the slot, its write fields below are read once it is set.
+     */
+    private final AtomicLongArray published = new AtomicLongArray(SLOTS);
+    private final long[] firstTimestamps = new long[SLOTS];
+    private final long[] lastTimestamps = new long[SLOTS];
+    private final AtomicLong nextSequence = new AtomicLong();
+    /**
+     * Sequence number of the oldest write not published yet, slots from it onwards are in use.
+     */
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong visible = new AtomicLong(Long.MIN_VALUE);
+
+    Watermark() {
+        for (int i = 0; i < SLOTS; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * Reserve the given number of consecutive timestamps for a write.
+     *
+     * @return sequence number of the write, see {@link #timestamp(long)} and {@link #publish(long)}
+     */
+    long begin(final int count) {
+        while (true) {
+            final var sequence = nextSequence.get();
+            if (sequence - head.get() >= SLOTS) {
+                Thread.yield();
+                continue;
+            }
+            // Timestamps taken after the number is read are greater than those of the claimed numbers
+            final var ts = TimeUtils.currentTimeNanos(count);
+            if (nextSequence.compareAndSet(sequence, sequence + 1)) {
+                final var slot = (int) (sequence & MASK);
+                firstTimestamps[slot] = ts;
+                lastTimestamps[slot] = ts + count - 1;
+                return sequence;
+            }
+        }
+    }
+
+    /**
+     * Get the first of the timestamps reserved by the write, should be called by the writer before publishing.
+     */
+    long timestamp(final long sequence) {
+        return firstTimestamps[(int) (sequence & MASK)];
+    }
+
+    /**
+     * Publish the write, whether it is applied or failed.
+     */
+    void publish(final long sequence) {
+        published.set((int) (sequence & MASK), sequence);
+        while (true) {
+            final var next = head.get();
+            final var slot = (int) (next & MASK);
+            if (published.get(slot) != next) {
+                // The write in progress moves the head once published
+                return;
+            }
+            final var ts = lastTimestamps[slot];
+            if (head.compareAndSet(next, next + 1)) {
+                visible.accumulateAndGet(ts, Math::max);
+            }
+        }
+    }
+
+    /**
+     * Get the timestamp every write up to which is completely applied.
+     */
+    long visible() {
+        return visible.get();
+    }
+}
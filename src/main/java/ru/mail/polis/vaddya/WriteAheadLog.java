@@ -0,0 +1,249 @@
+package ru.mail.polis.vaddya;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import static java.nio.ByteOrder.BIG_ENDIAN;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+
+/**
+ * Append-only log segment protecting the entries of a single MemTable until it is flushed.
+ *
+ * <p>Segment consists of records, each record contains:
+ * <ul>
+ * <li> Size of the entries (4 bytes)
+ * <li> CRC32 checksum of the entries (4 bytes)
+ * <li> One or more table entries (mapped to bytes using ByteBufferUtils.fromTableEntry)
+ * </ul>
+ */
+final class WriteAheadLog implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(WriteAheadLog.class);
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final Config.Durability durability;
+    /**
+     * Serializes fsyncs, so that a single fsync covers everything appended before it started.
+     */
+    private final Object syncLock = new Object();
+    // Guarded by this
+    private long written;
+    private long synced;
+    private boolean closed;
+
+    private WriteAheadLog(
+            @NotNull final Path path,
+            @NotNull final FileChannel channel,
+            @NotNull final Config.Durability durability) {
+        this.path = path;
+        this.channel = channel;
+        this.durability = durability;
+    }
+
+    /**
+     * Create a new empty log segment.
+     *
+     * @throws IOException if the file already exists or cannot be created
+     */
+    @NotNull
+    static WriteAheadLog create(
+            @NotNull final Path path,
+            @NotNull final Config.Durability durability) throws IOException {
+        final var channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        return new WriteAheadLog(path, channel, durability);
+    }
+
+    /**
+     * Read all the entries of the log segment.
+     * Replay stops at the first torn or corrupted record, it could have never been acknowledged,
+     * so the entries of a record are replayed either all or none.
+     *
+     * @return number of replayed entries
+     * @throws IOException if cannot read the file
+     */
+    static int replay(
+            @NotNull final Path path,
+            @NotNull final Consumer<TableEntry> consumer) throws IOException {
+        final ByteBuffer mapped;
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            mapped = channel.map(READ_ONLY, 0, channel.size()).order(BIG_ENDIAN);
+        }
+
+        var count = 0;
+        var offset = 0;
+        while (mapped.limit() - offset >= HEADER_SIZE) {
+            final var size = mapped.getInt(offset);
+            final var checksum = mapped.getInt(offset + Integer.BYTES);
+            if (size < 0 || mapped.limit() - offset - HEADER_SIZE < size) {
+                break;
+            }
+
+            final var entry = mapped.duplicate()
+                    .position(offset + HEADER_SIZE)
+                    .limit(offset + HEADER_SIZE + size)
+                    .slice();
+            if (checksum != checksum(entry)) {
+                break;
+            }
+
+            var entryOffset = 0;
+            while (entryOffset < size) {
+                final var replayed = ByteBufferUtils.toTableEntry(entry, entryOffset);
+                consumer.accept(replayed);
+                entryOffset += ByteBufferUtils.serializedSize(replayed);
+                count++;
+            }
+            offset += HEADER_SIZE + size;
+        }
+
+        if (offset < mapped.limit()) {
+            LOG.warn("Log {} has {} bytes of torn records at the end", path, mapped.limit() - offset);
+        }
+        return count;
+    }
+
+    /**
+     * Append the entry to the end of the log.
+     *
+     * @return position to pass to {@link #sync(long)} to wait for the entry to become durable
+     * @throws IOException if cannot write data
+     */
+    long append(@NotNull final TableEntry entry) throws IOException {
+        return append(ByteBufferUtils.fromTableEntry(entry));
+    }
+
+    /**
+     * Append the entries to the end of the log as a single record, so that they are replayed all or none.
+     *
+     * @return position to pass to {@link #sync(long)} to wait for the entries to become durable
+     * @throws IOException if cannot write data
+     */
+    long append(@NotNull final List<TableEntry> entries) throws IOException {
+        var size = 0;
+        for (final var entry : entries) {
+            size += ByteBufferUtils.serializedSize(entry);
+        }
+        final var payload = ByteBuffer.allocate(size);
+        entries.forEach(entry -> ByteBufferUtils.putTableEntry(payload, entry));
+        return append(payload.flip());
+    }
+
+    private synchronized long append(@NotNull final ByteBuffer payload) throws IOException {
+        final var header = ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(payload.remaining())
+                .putInt(checksum(payload))
+                .flip();
+        final var buffers = new ByteBuffer[]{header, payload};
+        final long size = header.remaining() + payload.remaining();
+        while (payload.hasRemaining()) {
+            channel.write(buffers);
+        }
+        written += size;
+        return written;
+    }
+
+    /**
+     * Wait for everything up to the position to become durable according to the durability mode.
+     *
+     * @throws IOException if cannot force data to disk
+     */
+    void sync(final long position) throws IOException {
+        switch (durability) {
+            case SYNC:
+                if (!isSynced(position)) {
+                    force();
+                }
+                break;
+            case GROUP:
+                awaitSynced(position);
+                break;
+            case ASYNC:
+                break;
+            default:
+                throw new IllegalStateException("Unknown durability mode: " + durability);
+        }
+    }
+
+    /**
+     * Force everything appended so far to disk and release the writers waiting for it.
+     *
+     * @throws IOException if cannot force data to disk
+     */
+    void force() throws IOException {
+        synchronized (syncLock) {
+            final long target;
+            synchronized (this) {
+                if (closed || synced == written) {
+                    return;
+                }
+                target = written;
+            }
+
+            channel.force(false);
+
+            synchronized (this) {
+                synced = target;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Delete the segment file, should be called once its MemTable is flushed.
+     *
+     * @throws IOException if cannot delete the file
+     */
+    void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            try {
+                channel.force(false);
+            } finally {
+                channel.close();
+                synchronized (this) {
+                    closed = true;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private synchronized boolean isSynced(final long position) {
+        return closed || synced >= position;
+    }
+
+    private synchronized void awaitSynced(final long position) throws IOException {
+        try {
+            while (!closed && synced < position) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for group commit");
+        }
+    }
+
+    private static int checksum(@NotNull final ByteBuffer buffer) {
+        final var crc = new CRC32();
+        crc.update(buffer.duplicate());
+        return (int) crc.getValue();
+    }
+}
@@ -161,6 +161,34 @@ class BasicTest extends TestBase {
         }
     }
 
+    @Test
+    void descendingScan(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            // Generate and insert data
+            final int count = 10;
+            final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>();
+            for (int i = 0; i < count; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                assertNull(map.put(key, value));
+            }
+
+            // Check the data
+            final ByteBuffer middle = Iterators.get(map.keySet().iterator(), count / 2);
+            final Iterator<Map.Entry<ByteBuffer, ByteBuffer>> expectedIter =
+                    map.headMap(middle, true).descendingMap().entrySet().iterator();
+            final Iterator<Record> actualIter = dao.descendingRange(map.firstKey(), map.higherKey(middle));
+            while (expectedIter.hasNext()) {
+                final Map.Entry<ByteBuffer, ByteBuffer> expected = expectedIter.next();
+                final Record actual = actualIter.next();
+                assertEquals(expected.getKey(), actual.getKey());
+                assertEquals(expected.getValue(), actual.getValue());
+            }
+            assertFalse(actualIter.hasNext());
+        }
+    }
+
     @Test
     void emptyValue(@TempDir File data) throws IOException {
         final ByteBuffer key = randomKey();
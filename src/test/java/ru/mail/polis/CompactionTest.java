@@ -21,14 +21,25 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.vaddya.Config;
+import ru.mail.polis.vaddya.DAOImpl;
+import ru.mail.polis.vaddya.Metrics;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -204,4 +215,272 @@ class CompactionTest extends TestBase {
             }
         }
     }
+
+    @Test
+    void leveled(@TempDir File data) throws IOException {
+        // Small tables and levels, so that data goes several levels deep
+        final Config config = Config.builder()
+                .flushThresholdInBytes(64 * 1024)
+                .level0CompactionTrigger(2)
+                .levelBaseSizeInBytes(256 * 1024)
+                .levelSizeMultiplier(2)
+                .maxLevels(4)
+                .tableSizeInBytes(64 * 1024)
+                .build();
+        final Metrics metrics = overwriteAndReopen(data, config);
+        assertTrue(metrics.compactions() > 0);
+        // Every entry is rewritten at most a few times per level
+        assertTrue(metrics.writeAmplification() < 4 * config.levelSizeMultiplier());
+    }
+
+    @Test
+    void sizeTiered(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .flushThresholdInBytes(64 * 1024)
+                .compactionStyle(Config.CompactionStyle.SIZE_TIERED)
+                .sizeTieredMinThreshold(2)
+                .compactionBytesPerSecond(64 * 1024 * 1024)
+                .build();
+        assertTrue(overwriteAndReopen(data, config).compactions() > 0);
+    }
+
+    @Test
+    void subcompactions(@TempDir File data) throws IOException {
+        // Compactions into level 1 yield several tables, so that they are split into ranges
+        final Config config = Config.builder()
+                .flushThresholdInBytes(64 * 1024)
+                .level0CompactionTrigger(4)
+                .tableSizeInBytes(16 * 1024)
+                .maxSubcompactions(4)
+                .build();
+        assertTrue(overwriteAndReopen(data, config).subcompactions() > 0);
+
+        // Full compaction is split as well
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            final Map<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            records.forEachRemaining(record -> entries.put(record.getKey(), record.getValue()));
+
+            dao.compact();
+            assertTrue(dao.metrics().subcompactions() > 0);
+            final Iterator<Record> compacted = dao.iterator(ByteBuffer.allocate(0));
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                final Record record = compacted.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(compacted.hasNext());
+        }
+    }
+
+    @Test
+    void sizeTieredCompact(@TempDir File data) throws Exception {
+        // Manual compaction keeps the tables in level 0, so that later tombstones are still purged
+        final Config config = Config.builder()
+                .compactionStyle(Config.CompactionStyle.SIZE_TIERED)
+                .sizeTieredMinThreshold(2)
+                .tombstoneCompactionRatio(0.5)
+                .build();
+        final int keyCount = 1000;
+        final Map<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        final long compactedSize;
+        try (DAO dao = new DAOImpl(data, config)) {
+            for (int i = 0; i < keyCount; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+        }
+        try (DAO dao = new DAOImpl(data, config)) {
+            dao.compact();
+            final List<String> tables = listTables(data);
+            assertEquals(1, tables.size());
+            compactedSize = new File(data, tables.get(0)).length();
+        }
+
+        // Most of the keys are removed by a table of tombstones
+        try (DAO dao = new DAOImpl(data, config)) {
+            final Iterator<Map.Entry<ByteBuffer, ByteBuffer>> iterator = entries.entrySet().iterator();
+            for (int i = 0; iterator.hasNext(); i++) {
+                final ByteBuffer key = iterator.next().getKey();
+                if (i % 10 != 0) {
+                    dao.remove(key);
+                    iterator.remove();
+                }
+            }
+        }
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            awaitCompaction(dao);
+        }
+
+        final List<String> tables = listTables(data);
+        assertEquals(1, tables.size());
+        assertTrue(new File(data, tables.get(0)).length() < compactedSize / 2);
+        try (DAO dao = new DAOImpl(data, config)) {
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                final Record record = records.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(records.hasNext());
+        }
+    }
+
+    @Test
+    void failedCompaction(@TempDir File data) throws IOException {
+        // Several tables are flushed and never compacted on their own
+        final Config config = Config.builder()
+                .flushThresholdInBytes(64 * 1024)
+                .level0CompactionTrigger(Integer.MAX_VALUE)
+                .tableSizeInBytes(16 * 1024)
+                .build();
+        final Map<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        try (DAO dao = new DAOImpl(data, config)) {
+            for (int i = 0; i < 2_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+        }
+
+        try (DAO dao = new DAOImpl(data, config)) {
+            final List<String> tables = listTables(data);
+            // Outputs take the generations following the log, the second one is taken already
+            final String log = listFiles(data, ".log").get(0);
+            final long generation = Long.parseLong(log.substring(0, log.indexOf('.')));
+            final File blocker = new File(data, String.format("%019d.tmp", generation + 2));
+            assertTrue(blocker.createNewFile());
+            assertThrows(IOException.class, dao::compact);
+
+            // The first output is removed, the tables are still there
+            assertEquals(tables, listTables(data));
+            assertTrue(blocker.delete());
+            dao.compact();
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    void tombstones(@TempDir File data) throws Exception {
+        // A single table is never merged by size, only its share of tombstones gets it compacted
+        final Config config = Config.builder()
+                .compactionStyle(Config.CompactionStyle.SIZE_TIERED)
+                .tombstoneCompactionRatio(0.5)
+                .build();
+        final int keyCount = 1000;
+        final Map<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        final DAOImpl written = new DAOImpl(data, config);
+        try (written) {
+            for (int i = 0; i < keyCount; i++) {
+                final ByteBuffer key = randomKey();
+                // Small values, so that the table consists mostly of tombstones
+                final ByteBuffer value = randomBuffer(KEY_LENGTH);
+                written.upsert(key, value);
+                if (i % 10 == 0) {
+                    entries.put(key, value);
+                } else {
+                    written.remove(key);
+                }
+            }
+        }
+        final DAOImpl reopened = new DAOImpl(data, config);
+        try (reopened) {
+            if (written.metrics().compactions() == 0) {
+                awaitCompaction(reopened);
+            }
+        }
+        assertTrue(written.metrics().compactions() + reopened.metrics().compactions() > 0);
+
+        // Tombstones are dropped rather than rewritten
+        final List<String> tables = listTables(data);
+        assertEquals(1, tables.size());
+        assertTrue(new File(data, tables.get(0)).length() < written.metrics().bytesFlushed() / 4);
+
+        try (DAO dao = new DAOImpl(data, config)) {
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                final Record record = records.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(records.hasNext());
+        }
+    }
+
+    /**
+     * Overwrite and remove random keys, then check the reopened DAO.
+     *
+     * @return metrics of the DAO the keys were written to
+     */
+    private static Metrics overwriteAndReopen(
+            final File data,
+            final Config config) throws IOException {
+        final int keyCount = 2000;
+        final List<ByteBuffer> keys = new ArrayList<>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add(randomKey());
+        }
+        final Map<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        final Random random = new Random();
+
+        final DAOImpl written = new DAOImpl(data, config);
+        try (written) {
+            for (int i = 0; i < 10 * keyCount; i++) {
+                final ByteBuffer key = keys.get(random.nextInt(keyCount));
+                if (random.nextInt(10) == 0) {
+                    written.remove(key);
+                    entries.remove(key);
+                } else {
+                    final ByteBuffer value = randomValue();
+                    written.upsert(key, value);
+                    entries.put(key, value);
+                }
+            }
+        }
+
+        // Tables are restored from the manifest
+        try (DAO dao = new DAOImpl(data, config)) {
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+                final Record record = records.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(records.hasNext());
+        }
+        return written.metrics();
+    }
+
+    /**
+     * Wait for the background compaction started on open, a closed DAO skips the pending ones.
+     */
+    private static void awaitCompaction(final DAOImpl dao) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (dao.metrics().compactions() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static List<String> listTables(final File data) {
+        return listFiles(data, ".db");
+    }
+
+    private static List<String> listFiles(
+            final File data,
+            final String suffix) {
+        final List<String> result = new ArrayList<>();
+        for (final String name : Objects.requireNonNull(data.list())) {
+            if (name.endsWith(suffix)) {
+                result.add(name);
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
 }
@@ -0,0 +1,246 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.vaddya.Config;
+import ru.mail.polis.vaddya.DAOImpl;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Multi-threaded stress tests for {@link DAO} implementations.
+ */
+class ConcurrencyTest extends TestBase {
+    private static final int THREADS = 8;
+    private static final int KEYS_PER_THREAD = 2_000;
+
+    @Test
+    void concurrentUpserts(@TempDir File data) throws Exception {
+        try (DAO dao = DAOFactory.create(data)) {
+            runConcurrently(thread -> () -> {
+                for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                    dao.upsert(key(thread, i), value(thread, i));
+                }
+                return null;
+            });
+
+            // Every write is visible, scan is sorted and has no duplicates
+            for (int thread = 0; thread < THREADS; thread++) {
+                for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                    assertEquals(value(thread, i), dao.get(key(thread, i)));
+                }
+            }
+            assertEquals(THREADS * KEYS_PER_THREAD, countSorted(dao.iterator(ByteBuffer.allocate(0))));
+        }
+
+        // Every write survives reopening
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(THREADS * KEYS_PER_THREAD, countSorted(dao.iterator(ByteBuffer.allocate(0))));
+        }
+    }
+
+    @Test
+    void concurrentUpsertsAndRemoves(@TempDir File data) throws Exception {
+        try (DAO dao = DAOFactory.create(data)) {
+            runConcurrently(thread -> () -> {
+                for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                    dao.upsert(key(thread, i), value(thread, i));
+                    if (i % 2 == 1) {
+                        dao.remove(key(thread, i - 1));
+                    }
+                }
+                return null;
+            });
+
+            for (int thread = 0; thread < THREADS; thread++) {
+                for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                    final ByteBuffer key = key(thread, i);
+                    if (i % 2 == 0) {
+                        final Iterator<Record> iterator = dao.iterator(key);
+                        assertFalse(iterator.hasNext() && iterator.next().getKey().equals(key));
+                    } else {
+                        assertEquals(value(thread, i), dao.get(key));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void groupCommit(@TempDir File data) throws Exception {
+        final Config config = Config.builder()
+                .durability(Config.Durability.GROUP)
+                .groupCommitIntervalMillis(5)
+                .build();
+        final int keys = KEYS_PER_THREAD / 10;
+        try (DAO dao = new DAOImpl(data, config)) {
+            runConcurrently(thread -> () -> {
+                for (int i = 0; i < keys; i++) {
+                    dao.upsert(key(thread, i), value(thread, i));
+                }
+                return null;
+            });
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(THREADS * keys, countSorted(dao.iterator(ByteBuffer.allocate(0))));
+        }
+    }
+
+    @Test
+    void scansDuringUpserts(@TempDir File data) throws Exception {
+        try (DAO dao = DAOFactory.create(data)) {
+            runConcurrently(thread -> () -> {
+                if (thread % 2 == 0) {
+                    for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                        dao.upsert(key(thread, i), value(thread, i));
+                    }
+                } else {
+                    for (int i = 0; i < 10; i++) {
+                        countSorted(dao.iterator(ByteBuffer.allocate(0)));
+                    }
+                }
+                return null;
+            });
+
+            assertEquals(THREADS / 2 * KEYS_PER_THREAD, countSorted(dao.iterator(ByteBuffer.allocate(0))));
+        }
+    }
+
+    @Test
+    void atomicBatches(@TempDir File data) throws Exception {
+        final int keys = 100;
+        final int rounds = 200;
+        try (DAO dao = DAOFactory.create(data)) {
+            runConcurrently(thread -> () -> {
+                if (thread == 0) {
+                    // Every round rewrites all the keys, every tenth one removes them
+                    for (int round = 0; round < rounds; round++) {
+                        final WriteBatch batch = new WriteBatch();
+                        for (int i = 0; i < keys; i++) {
+                            if (round % 10 == 9) {
+                                batch.remove(key(0, i));
+                            } else {
+                                batch.upsert(key(0, i), value(round, i));
+                            }
+                        }
+                        dao.apply(batch);
+                    }
+                } else {
+                    // Scans see the keys of a single round
+                    for (int i = 0; i < rounds / 10; i++) {
+                        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+                        int count = 0;
+                        int round = -1;
+                        while (records.hasNext()) {
+                            final int current = records.next().getValue().getInt(0);
+                            assertTrue(round < 0 || round == current);
+                            round = current;
+                            count++;
+                        }
+                        assertTrue(count == 0 || count == keys);
+                    }
+                }
+                return null;
+            });
+
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+    }
+
+    @Test
+    void scansDuringGets(@TempDir File data) throws Exception {
+        // Keys of the on-heap MemTable are shared with the cursors, so the scans should never move them
+        final Config config = Config.builder()
+                .offHeapMemTable(false)
+                .build();
+        try (DAO dao = new DAOImpl(data, config)) {
+            for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                dao.upsert(key(0, i), value(0, i));
+            }
+
+            runConcurrently(thread -> () -> {
+                for (int round = 0; round < 100; round++) {
+                    if (thread % 2 == 0) {
+                        assertEquals(KEYS_PER_THREAD, countSorted(dao.iterator(ByteBuffer.allocate(0))));
+                    } else {
+                        for (int i = 0; i < KEYS_PER_THREAD; i++) {
+                            assertEquals(value(0, i), dao.get(key(0, i)));
+                        }
+                    }
+                }
+                return null;
+            });
+        }
+    }
+
+    private static void runConcurrently(
+            final Worker worker) throws InterruptedException, ExecutionException {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final Collection<Callable<Void>> tasks = new ArrayList<>(THREADS);
+            for (int thread = 0; thread < THREADS; thread++) {
+                tasks.add(worker.task(thread));
+            }
+            final List<Future<Void>> futures = executor.invokeAll(tasks);
+            for (final Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        }
+    }
+
+    private static int countSorted(final Iterator<Record> iterator) {
+        int count = 0;
+        Record previous = null;
+        while (iterator.hasNext()) {
+            final Record current = iterator.next();
+            assertTrue(previous == null || previous.compareTo(current) < 0);
+            previous = current;
+            count++;
+        }
+        return count;
+    }
+
+    private static ByteBuffer key(
+            final int thread,
+            final int index) {
+        final ByteBuffer key = ByteBuffer.allocate(Integer.BYTES * 2);
+        key.putInt(index);
+        key.putInt(thread);
+        key.rewind();
+        return key;
+    }
+
+    private static ByteBuffer value(
+            final int thread,
+            final int index) {
+        final ByteBuffer value = ByteBuffer.allocate(1024);
+        value.putInt(thread);
+        value.putInt(index);
+        value.rewind();
+        return value;
+    }
+
+    @FunctionalInterface
+    private interface Worker {
+        Callable<Void> task(int thread);
+    }
+}
@@ -19,6 +19,8 @@ package ru.mail.polis;
 import org.junit.jupiter.api.RepeatedTest;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.vaddya.Config;
+import ru.mail.polis.vaddya.DAOImpl;
 
 import java.io.File;
 import java.io.IOException;
@@ -26,9 +28,14 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Random;
+import java.util.TreeMap;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
@@ -105,6 +112,630 @@ class PersistenceTest extends TestBase {
         }
     }
 
+    @Test
+    void recoverWithoutClose(@TempDir File data) throws IOException {
+        // Reference values
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer removedKey = randomKey();
+
+        // Create and fill storage, then abandon it as if the process crashed
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(removedKey, randomValue());
+        }
+        final DAO crashed = DAOFactory.create(data);
+        crashed.upsert(key, value);
+        crashed.remove(removedKey);
+
+        // Recreate dao and check the logged updates
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removedKey));
+        }
+    }
+
+    @Test
+    void staleLog(@TempDir File data) throws IOException {
+        // Reference values
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer removedKey = randomKey();
+
+        // Keep a copy of the log of a flushed table as if its removal failed
+        final Map<File, byte[]> logs = new HashMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, randomValue());
+            dao.upsert(removedKey, randomValue());
+            for (final File file : Objects.requireNonNull(data.listFiles((dir, name) -> name.endsWith(".log")))) {
+                logs.put(file, java.nio.file.Files.readAllBytes(file.toPath()));
+            }
+        }
+        assertFalse(logs.isEmpty());
+
+        // Newer tables override the logged entries
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+            dao.remove(removedKey);
+        }
+        for (final Map.Entry<File, byte[]> log : logs.entrySet()) {
+            java.nio.file.Files.write(log.getKey().toPath(), log.getValue());
+        }
+
+        // The stale log is skipped rather than replayed as the newest table
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removedKey));
+        }
+        for (final File log : logs.keySet()) {
+            assertFalse(log.exists());
+        }
+    }
+
+    @Test
+    void staleLogOfPurgedTable(@TempDir File data) throws IOException {
+        // Reference value
+        final ByteBuffer key = randomKey();
+
+        // Keep a copy of the log of a flushed table as if its removal failed
+        final Map<File, byte[]> logs = new HashMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, randomValue());
+            for (final File file : Objects.requireNonNull(data.listFiles((dir, name) -> name.endsWith(".log")))) {
+                logs.put(file, java.nio.file.Files.readAllBytes(file.toPath()));
+            }
+        }
+        assertFalse(logs.isEmpty());
+
+        // Compaction drops the removed key along with its tombstone, so no table is left
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.remove(key);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.compact();
+        }
+        assertEquals(0, Objects.requireNonNull(data.listFiles((dir, name) -> name.endsWith(".db"))).length);
+        for (final Map.Entry<File, byte[]> log : logs.entrySet()) {
+            java.nio.file.Files.write(log.getKey().toPath(), log.getValue());
+        }
+
+        // The stale log is still skipped
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+        }
+    }
+
+    @Test
+    void writeBatch(@TempDir File data) throws IOException {
+        // Reference values
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer overwrittenKey = randomKey();
+        final ByteBuffer overwrittenValue = randomValue();
+        final ByteBuffer removedKey = randomKey();
+
+        // Apply the batch and abandon the storage as if the process crashed
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(removedKey, randomValue());
+        }
+        final DAO crashed = DAOFactory.create(data);
+        crashed.apply(new WriteBatch()
+                .upsert(key, value)
+                .remove(overwrittenKey)
+                .upsert(overwrittenKey, overwrittenValue)
+                .remove(removedKey));
+        assertEquals(value, crashed.get(key));
+        assertEquals(overwrittenValue, crashed.get(overwrittenKey));
+        assertThrows(NoSuchElementException.class, () -> crashed.get(removedKey));
+
+        // The batch is replayed from a single log record
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+            assertEquals(overwrittenValue, dao.get(overwrittenKey));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removedKey));
+        }
+    }
+
+    @Test
+    void frequentFlushes(@TempDir File data) throws IOException {
+        // Every write is flushed to a table of its own
+        final Config config = Config.builder()
+                .flushThresholdInBytes(0)
+                .level0CompactionTrigger(1000)
+                .build();
+        final ByteBuffer key = randomKey();
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+
+        // Overwrite the same key many times in a row
+        try (DAO dao = new DAOImpl(data, config)) {
+            for (int i = 0; i < 200; i++) {
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                entries.put(key, value);
+                if (i % 10 == 0) {
+                    final ByteBuffer other = randomKey();
+                    dao.upsert(other, value);
+                    entries.put(other, value);
+                }
+            }
+        }
+
+        // The newest table wins
+        try (DAO dao = new DAOImpl(data, config)) {
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+                final Record record = records.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(records.hasNext());
+        }
+    }
+
+    @Test
+    void removeOrphans(@TempDir File data) throws IOException {
+        // Reference value
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+
+        // Create and fill storage
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+        }
+
+        // Leave files of an interrupted flush and an unpublished compaction
+        final File tempTable = new File(data, "interrupted.tmp");
+        final File unpublishedTable = new File(data, "unpublished.db");
+        final File trash = new File(data, "trash.txt");
+        assertTrue(tempTable.createNewFile());
+        assertTrue(unpublishedTable.createNewFile());
+        assertTrue(trash.createNewFile());
+
+        // Orphans are removed by the time the storage is closed
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+        }
+        assertFalse(tempTable.exists());
+        assertFalse(unpublishedTable.exists());
+        assertTrue(trash.exists());
+    }
+
+    @Test
+    void snapshotIterators(@TempDir File data) throws IOException {
+        final ByteBuffer from = ByteBuffer.allocate(0);
+        for (final boolean offHeap : new boolean[]{false, true}) {
+            final Config config = Config.builder()
+                    .offHeapMemTable(offHeap)
+                    .level0CompactionTrigger(1000)
+                    .build();
+            final File root = new File(data, String.valueOf(offHeap));
+            assertTrue(root.mkdir());
+            final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+
+            // A few tables and some entries left in the MemTable
+            for (int table = 0; table < 3; table++) {
+                try (DAO dao = new DAOImpl(root, config)) {
+                    for (int i = 0; i < 100; i++) {
+                        final ByteBuffer key = randomKey();
+                        final ByteBuffer value = randomValue();
+                        dao.upsert(key, value);
+                        entries.put(key, value);
+                    }
+                }
+            }
+            try (DAO dao = new DAOImpl(root, config)) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                entries.put(key, value);
+
+                // Neither the writes made later nor the compaction affect the iterators
+                final Iterator<Record> ascending = dao.iterator(from);
+                final Iterator<Record> descending = dao.descendingRange(from, null);
+                for (final ByteBuffer existing : new ArrayList<>(entries.keySet())) {
+                    dao.remove(existing);
+                }
+                dao.upsert(randomKey(), randomValue());
+                dao.apply(new WriteBatch().upsert(key, randomValue()).upsert(randomKey(), randomValue()));
+                dao.compact();
+                assertEquals(4, tableFiles(root));
+
+                assertRecords(entries, ascending);
+                assertRecords(entries.descendingMap(), descending);
+
+                // Compacted tables are removed once the last iterator is exhausted
+                assertEquals(1, tableFiles(root));
+            }
+        }
+    }
+
+    @Test
+    void unmapTables(@TempDir File data) throws IOException {
+        final ByteBuffer from = ByteBuffer.allocate(0);
+        final Config config = Config.builder()
+                .level0CompactionTrigger(1000)
+                .build();
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        for (int table = 0; table < 3; table++) {
+            try (DAO dao = new DAOImpl(data, config)) {
+                for (int i = 0; i < 100; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    entries.put(key, value);
+                }
+            }
+        }
+
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            final ByteBuffer value = dao.get(entries.firstKey());
+            final Iterator<Record> records = dao.iterator(from);
+            final Record record = records.next();
+            records.forEachRemaining(r -> assertTrue(entries.containsKey(r.getKey())));
+
+            // Compacted tables stay mapped while the iterator reads them
+            final Iterator<Record> iterator = dao.iterator(from);
+            dao.compact();
+            assertTrue(dao.metrics().compactedBytesMapped() > 0);
+            assertRecords(entries, iterator);
+            assertEquals(0, dao.metrics().compactedBytesMapped());
+
+            // Values read before are not affected by unmapping
+            assertEquals(entries.firstEntry().getValue(), value);
+            assertEquals(Record.of(entries.firstKey(), entries.firstEntry().getValue()), record);
+        }
+
+        // Tables stay mapped while the iterator reads them after the storage is closed
+        final DAO dao = new DAOImpl(data, config);
+        final Iterator<Record> iterator = dao.iterator(from);
+        dao.close();
+        assertRecords(entries, iterator);
+    }
+
+    private static int tableFiles(final File root) {
+        final String[] names = root.list((dir, name) -> name.endsWith(".db"));
+        return names == null ? 0 : names.length;
+    }
+
+    @Test
+    void bloomFilters(@TempDir File data) throws IOException {
+        // Reference values
+        final int tables = 10;
+        final Map<ByteBuffer, ByteBuffer> entries = new HashMap<>();
+
+        // Flush several tables, keeping them out of compaction
+        final Config config = Config.builder()
+                .level0CompactionTrigger(2 * tables)
+                .build();
+        for (int i = 0; i < tables; i++) {
+            try (DAO dao = new DAOImpl(data, config)) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+        }
+
+        // Lookups stop at the table containing the key, misses probe almost nothing
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertEquals(tables, dao.metrics().bloomFilterHits() - dao.metrics().bloomFilterFalsePositives());
+            final long hitProbes = dao.metrics().bloomFilterHits() + dao.metrics().bloomFilterSkips();
+
+            for (int i = 0; i < 100; i++) {
+                final ByteBuffer key = randomKey();
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+            final long probes = dao.metrics().bloomFilterHits() + dao.metrics().bloomFilterSkips();
+            assertEquals(hitProbes + 100 * tables, probes);
+            assertTrue(dao.metrics().bloomFilterFalsePositives() < 2 * tables);
+        }
+    }
+
+    @Test
+    void smallBlocks(@TempDir File data) throws IOException {
+        // Tiny blocks and a cache holding just a few of them
+        final Config config = Config.builder()
+                .blockSizeInBytes(64)
+                .blockCacheSizeInBytes(1024)
+                .build();
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+
+        // Flush
+        try (DAO dao = new DAOImpl(data, config)) {
+            for (int i = 0; i < 1000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+        }
+
+        // Lookups and scans cross block boundaries
+        try (DAO dao = new DAOImpl(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+
+            final ByteBuffer from = randomKey();
+            final Iterator<Record> records = dao.iterator(from);
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.tailMap(from).entrySet()) {
+                assertTrue(records.hasNext());
+                final Record record = records.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(records.hasNext());
+        }
+    }
+
+    @Test
+    void mappedRegions(@TempDir File data) throws IOException {
+        final ByteBuffer from = ByteBuffer.allocate(0);
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+
+        // Regions smaller than a block, so that blocks, index entries and Bloom filters cross their boundaries
+        for (final Config.Compression compression : Config.Compression.values()) {
+            final Config config = Config.builder()
+                    .mapRegionSizeInBytes(4096)
+                    .blockSizeInBytes(10_000)
+                    .blockChecksums(compression != Config.Compression.NONE)
+                    .compression(compression)
+                    .build();
+            try (DAO dao = new DAOImpl(data, config)) {
+                for (int i = 0; i < 1000; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    entries.put(key, value);
+                }
+            }
+        }
+
+        // Tables are read with any region size, the ones produced by compaction as well
+        for (final int regionSize : new int[]{8192, 1024 * 1024}) {
+            final Config config = Config.builder()
+                    .mapRegionSizeInBytes(regionSize)
+                    .build();
+            try (DAO dao = new DAOImpl(data, config)) {
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                    assertEquals(entry.getValue(), dao.get(entry.getKey()));
+                }
+                assertRecords(entries, dao.iterator(from));
+                assertRecords(entries.descendingMap(), dao.descendingRange(from, null));
+                dao.compact();
+                assertRecords(entries, dao.iterator(from));
+            }
+        }
+    }
+
+    @Test
+    void spilledIndex(@TempDir File data) throws IOException {
+        final ByteBuffer from = ByteBuffer.allocate(0);
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+
+        // Index buffer holding just a few entries, so that the index of every table is spilled
+        final Config config = Config.builder()
+                .blockSizeInBytes(64)
+                .indexBufferSizeInBytes(100)
+                .build();
+        for (int table = 0; table < 3; table++) {
+            try (DAO dao = new DAOImpl(data, config)) {
+                for (int i = 0; i < 1000; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    entries.put(key, value);
+                }
+
+                // Index entry larger than the buffer
+                final ByteBuffer key = join(randomKey(), ByteBuffer.allocate(1000));
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+        }
+
+        try (DAO dao = new DAOImpl(data, config)) {
+            dao.compact();
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+        try (DAO dao = new DAOImpl(data, config)) {
+            assertRecords(entries, dao.iterator(from));
+        }
+
+        // Spill files are removed once the tables are written
+        final String[] spills = data.list((dir, name) -> name.endsWith(".tmp"));
+        assertTrue(spills != null && spills.length == 0);
+    }
+
+    @Test
+    void boundedRange(@TempDir File data) throws IOException {
+        // Bounds fall inside and between the blocks of many small tables
+        final Config config = Config.builder()
+                .flushThresholdInBytes(4 * 1024)
+                .blockSizeInBytes(256)
+                .level0CompactionTrigger(1000)
+                .build();
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        final List<ByteBuffer> keys = new ArrayList<>();
+
+        // Flush
+        try (DAO dao = new DAOImpl(data, config)) {
+            for (int i = 0; i < 1000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                entries.put(key, value);
+                keys.add(key);
+            }
+        }
+
+        // Ranges between existing and absent keys
+        final Random random = new Random();
+        try (DAO dao = new DAOImpl(data, config)) {
+            for (int i = 0; i < 100; i++) {
+                final ByteBuffer first = keys.get(random.nextInt(keys.size()));
+                final ByteBuffer second = i % 2 == 0 ? keys.get(random.nextInt(keys.size())) : randomKey();
+                final ByteBuffer from = first.compareTo(second) <= 0 ? first : second;
+                final ByteBuffer to = first.compareTo(second) <= 0 ? second : first;
+                assertRecords(entries.subMap(from, true, to, false), dao.range(from, to));
+            }
+            assertFalse(dao.range(entries.lastKey(), entries.firstKey()).hasNext());
+        }
+    }
+
+    @Test
+    void descendingRange(@TempDir File data) throws IOException {
+        // Entries spread across many small tables, their blocks and the MemTable
+        final Config config = Config.builder()
+                .flushThresholdInBytes(4 * 1024)
+                .blockSizeInBytes(256)
+                .level0CompactionTrigger(1000)
+                .build();
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        final List<ByteBuffer> keys = new ArrayList<>();
+
+        // Insert, overwrite and remove
+        try (DAO dao = new DAOImpl(data, config)) {
+            for (int i = 0; i < 1000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                entries.put(key, value);
+                keys.add(key);
+            }
+            for (int i = 0; i < keys.size(); i += 3) {
+                final ByteBuffer value = randomValue();
+                dao.upsert(keys.get(i), value);
+                entries.put(keys.get(i), value);
+            }
+            for (int i = 1; i < keys.size(); i += 5) {
+                dao.remove(keys.get(i));
+                entries.remove(keys.get(i));
+            }
+            assertDescending(entries, dao);
+        }
+
+        // Tables are scanned backwards after reopening
+        try (DAO dao = new DAOImpl(data, config)) {
+            assertDescending(entries, dao);
+        }
+    }
+
+    private static void assertDescending(
+            final NavigableMap<ByteBuffer, ByteBuffer> entries,
+            final DAO dao) throws IOException {
+        final ByteBuffer from = entries.firstKey();
+        final ByteBuffer to = entries.lastKey();
+        assertRecords(entries.descendingMap(), dao.descendingRange(ByteBuffer.allocate(0), null));
+        assertRecords(entries.subMap(from, true, to, false).descendingMap(), dao.descendingRange(from, to));
+        final ByteBuffer middle = randomKey();
+        assertRecords(entries.headMap(middle, false).descendingMap(), dao.descendingRange(from, middle));
+        assertRecords(entries.tailMap(middle, true).descendingMap(), dao.descendingRange(middle, null));
+        assertFalse(dao.descendingRange(to, from).hasNext());
+    }
+
+    private static void assertRecords(
+            final NavigableMap<ByteBuffer, ByteBuffer> expected,
+            final Iterator<Record> records) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    @Test
+    void sharedPrefixes(@TempDir File data) throws IOException {
+        // Keys of different length sharing a long prefix, some of them are prefixes of the others
+        final Config config = Config.builder()
+                .blockSizeInBytes(512)
+                .blockRestartInterval(4)
+                .build();
+        final ByteBuffer prefix = randomKey();
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+
+        // Flush
+        try (DAO dao = new DAOImpl(data, config)) {
+            for (int i = 0; i < 1000; i++) {
+                final ByteBuffer key = join(prefix, randomBuffer(i % 3 + 1));
+                final ByteBuffer value = randomBuffer(i % 5 + 1);
+                dao.upsert(key, value);
+                entries.put(key, value);
+            }
+            for (int i = 0; i < 100; i++) {
+                final ByteBuffer key = entries.firstKey();
+                dao.remove(key);
+                entries.remove(key);
+            }
+        }
+
+        // Keys are restored from the shared prefixes
+        try (DAO dao = new DAOImpl(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(prefix));
+
+            final Iterator<Record> records = dao.iterator(prefix);
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertTrue(records.hasNext());
+                final Record record = records.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(records.hasNext());
+        }
+    }
+
+    @Test
+    void compression(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+
+        // Every table is written with its own codec, values are compressible
+        for (final Config.Compression compression : Config.Compression.values()) {
+            final Config config = Config.builder()
+                    .compression(compression)
+                    .build();
+            try (DAO dao = new DAOImpl(data, config)) {
+                for (int i = 0; i < 1000; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = join(key, ByteBuffer.allocate(i % 100));
+                    dao.upsert(key, value);
+                    entries.put(key, value);
+                }
+            }
+        }
+
+        // Tables with different codecs are read and compacted together
+        final Config config = Config.builder()
+                .compression(Config.Compression.LZ4)
+                .build();
+        try (DAO dao = new DAOImpl(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            dao.compact();
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                assertTrue(records.hasNext());
+                final Record record = records.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(records.hasNext());
+        }
+    }
+
     @RepeatedTest(1000)
     void replaceWithClose(@TempDir File data) throws Exception {
         final ByteBuffer key = randomKey();
@@ -0,0 +1,78 @@
+package ru.mail.polis.vaddya;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link BloomFilter}.
+ */
+class BloomFilterTest {
+    @Test
+    void falsePositiveRate() {
+        final Random random = new Random(1);
+        final BloomFilter filter = BloomFilter.create(10_000, 0.01);
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            final ByteBuffer key = randomKey(random);
+            filter.add(key);
+            keys.add(key);
+        }
+
+        // Added keys are never ruled out
+        for (final ByteBuffer key : keys) {
+            assertTrue(filter.mightContain(key));
+        }
+        var falsePositives = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (filter.mightContain(randomKey(random))) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 2_000, "False positives: " + falsePositives);
+    }
+
+    @Test
+    void largeFilters() {
+        // Filter of 2^36 bits is too large to allocate here, so the positions are checked directly
+        final long bitCount = 1L << 36;
+        final Random random = new Random(1);
+        var high = 0;
+        for (int i = 0; i < 10_000; i++) {
+            final long bit = BloomFilter.index(random.nextLong(), bitCount);
+            assertTrue(bit >= 0 && bit < bitCount);
+            if (bit >= 1L << 35) {
+                high++;
+            }
+        }
+        // The upper half of the filter gets about half of the positions
+        assertTrue(high > 4_000 && high < 6_000, "Positions in the upper half: " + high);
+    }
+
+    @Test
+    void sizedFromHashes() {
+        // Filter sized once the keys are counted is the same as the one sized beforehand
+        final Random random = new Random(1);
+        final int count = 1_000;
+        final long[] hashes = new long[count * 2];
+        final BloomFilter presized = BloomFilter.create(count, 0.01);
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer key = randomKey(random);
+            presized.add(key);
+            hashes[i] = BloomFilter.hash(key);
+        }
+        assertEquals(presized.toByteBuffer(), BloomFilter.of(hashes, count, 0.01).toByteBuffer());
+    }
+
+    private static ByteBuffer randomKey(final Random random) {
+        final byte[] key = new byte[16];
+        random.nextBytes(key);
+        return ByteBuffer.wrap(key);
+    }
+}
@@ -0,0 +1,165 @@
+package ru.mail.polis.vaddya;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Unit tests for {@link OffHeapMemTable}.
+ */
+class OffHeapMemTableTest {
+    @Test
+    void concurrentInserts() throws Exception {
+        // Every thread writes every key in the same order, so that the writers race for the same keys
+        final int threads = 4;
+        final int keyCount = 2_000;
+        final OffHeapMemTable table = new OffHeapMemTable();
+        final AtomicLong clock = new AtomicLong();
+        final AtomicLong size = new AtomicLong();
+        final Map<ByteBuffer, Long> newest = new ConcurrentHashMap<>();
+        final CyclicBarrier start = new CyclicBarrier(threads);
+        final List<Thread> writers = new ArrayList<>();
+        final List<Throwable> failures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final Thread writer = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < keyCount; i++) {
+                        final TableEntry entry = TableEntry.from(key(i), value(i), false, clock.incrementAndGet());
+                        table.put(entry);
+                        size.addAndGet(ByteBufferUtils.serializedSize(entry));
+                        newest.merge(entry.getKey(), entry.ts(), Math::max);
+                    }
+                } catch (Exception e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        for (final Thread writer : writers) {
+            writer.join();
+        }
+        assertTrue(failures.isEmpty(), failures.toString());
+
+        // Every key is counted once and resolves to its newest entry
+        assertEquals(keyCount, table.entriesCount());
+        assertEquals(size.get(), table.currentSize());
+        final Iterator<TableEntry> entries = table.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, Long> expected : new TreeMap<>(newest).entrySet()) {
+            final TableEntry entry = entries.next();
+            assertEquals(expected.getKey(), entry.getKey());
+            assertEquals((long) expected.getValue(), entry.ts());
+        }
+        assertFalse(entries.hasNext());
+    }
+
+    @Test
+    void descendingOrder() {
+        final OffHeapMemTable table = new OffHeapMemTable();
+        final NavigableMap<ByteBuffer, TableEntry> latest = new TreeMap<>();
+        final Random random = new Random(1);
+        long ts = 0;
+        for (int i = 0; i < 1_000; i++) {
+            final ByteBuffer key = key(random.nextInt(300));
+            final TableEntry entry = random.nextInt(5) == 0
+                    ? TableEntry.from(key, ByteBufferUtils.emptyBuffer(), true, ++ts)
+                    : TableEntry.from(key, value(i), false, ++ts);
+            table.put(entry);
+            latest.put(key, entry);
+        }
+        final long firstPassTs = ts;
+        final NavigableMap<ByteBuffer, TableEntry> firstPass = new TreeMap<>(latest);
+        for (final ByteBuffer key : new ArrayList<>(latest.keySet())) {
+            final TableEntry entry = TableEntry.from(key, value(0), false, ++ts);
+            table.put(entry);
+            latest.put(key, entry);
+        }
+
+        // Newest entries from the greatest key down
+        assertDescending(latest.descendingMap().values().iterator(), table.descendingIterator(null));
+        final ByteBuffer to = latest.navigableKeySet().higher(latest.firstKey());
+        assertDescending(latest.headMap(to, false).descendingMap().values().iterator(), table.descendingIterator(to));
+
+        // Entries as of the timestamp of the last write before the overwrites
+        assertDescending(firstPass.descendingMap().values().iterator(), table.descendingIterator(null, firstPassTs));
+        assertNull(table.get(latest.firstKey(), 0));
+    }
+
+    @Test
+    void sizeAccounting() {
+        final OffHeapMemTable table = new OffHeapMemTable();
+        final Map<ByteBuffer, Boolean> keys = new TreeMap<>();
+        long size = 0;
+        long ts = 0;
+        for (int i = 0; i < 5_000; i++) {
+            final ByteBuffer key = key(i % 1_000);
+            // Values larger than a quarter of a slab get slabs of their own
+            final ByteBuffer value = i % 1_000 == 0 ? ByteBuffer.allocate(Arena.SLAB_SIZE) : value(i);
+            final TableEntry entry = i % 7 == 0
+                    ? TableEntry.from(key, ByteBufferUtils.emptyBuffer(), true, ++ts)
+                    : TableEntry.from(key, value, false, ++ts);
+            table.put(entry);
+            keys.put(key, true);
+            size += ByteBufferUtils.serializedSize(entry);
+            assertEquals(keys.size(), table.entriesCount());
+            assertEquals(size, table.currentSize());
+        }
+        final TableEntry large = table.get(key(0));
+        assertNotNull(large);
+        assertEquals(Arena.SLAB_SIZE, large.getValue().remaining());
+    }
+
+    @Test
+    void references() {
+        final OffHeapMemTable table = new OffHeapMemTable();
+        table.put(TableEntry.from(key(1), value(1), false, 1));
+
+        // A reader keeps the table readable after the reference taken on creation is dropped
+        table.retain();
+        table.release();
+        final TableEntry entry = table.get(key(1));
+        assertNotNull(entry);
+        assertEquals(value(1), entry.getValue());
+        table.release();
+    }
+
+    private static void assertDescending(
+            final Iterator<TableEntry> expected,
+            final Iterator<TableEntry> actual) {
+        while (expected.hasNext()) {
+            final TableEntry entry = expected.next();
+            final TableEntry next = actual.next();
+            assertEquals(entry.getKey(), next.getKey());
+            assertEquals(entry.ts(), next.ts());
+            assertEquals(entry.hasTombstone(), next.hasTombstone());
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+    }
+
+    private static ByteBuffer value(final int i) {
+        return ByteBuffer.allocate(Integer.BYTES * 4).putInt(0, i);
+    }
+}
@@ -0,0 +1,128 @@
+package ru.mail.polis.vaddya;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Snapshot isolation of {@link DAOImpl} readers racing with writers.
+ */
+class SnapshotTest {
+    @Test
+    void concurrentPuts(@TempDir File data) throws Exception {
+        // Every write goes to a key of its own, so that its timestamp stays the same until the end
+        final int writerCount = 4;
+        final int writesPerWriter = 20_000;
+        final Config config = Config.builder()
+                .flushThresholdInBytes(64 * 1024 * 1024)
+                .build();
+        final List<long[]> snapshots = new ArrayList<>();
+        final List<Throwable> failures = new ArrayList<>();
+        try (DAOImpl dao = new DAOImpl(data, config)) {
+            final CountDownLatch done = new CountDownLatch(writerCount);
+            final List<Thread> writers = new ArrayList<>();
+            for (int w = 0; w < writerCount; w++) {
+                final Thread writer = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < writesPerWriter; i++) {
+                            dao.upsert(randomKey(), ByteBuffer.allocate(Long.BYTES));
+                        }
+                    } catch (Exception e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                });
+                writers.add(writer);
+                writer.start();
+            }
+
+            // A snapshot as of a timestamp sees every write up to it, so it is described by its size and bound
+            while (done.getCount() > 0) {
+                final Cursor cursor = dao.cursor(ByteBuffer.allocate(0), null);
+                long count = 0;
+                long maxTs = Long.MIN_VALUE;
+                while (cursor.advance()) {
+                    count++;
+                    maxTs = Math.max(maxTs, cursor.ts());
+                }
+                snapshots.add(new long[]{count, maxTs});
+            }
+            for (final Thread writer : writers) {
+                writer.join();
+            }
+            assertTrue(failures.isEmpty(), failures.toString());
+
+            final long[] timestamps = new long[writerCount * writesPerWriter];
+            final Cursor cursor = dao.cursor(ByteBuffer.allocate(0), null);
+            int written = 0;
+            while (cursor.advance()) {
+                timestamps[written++] = cursor.ts();
+            }
+            assertEquals(timestamps.length, written);
+            Arrays.sort(timestamps);
+            for (final long[] snapshot : snapshots) {
+                final long expected = snapshot[0] == 0 ? 0 : upperBound(timestamps, snapshot[1]);
+                assertEquals(expected, snapshot[0], "Snapshot misses writes older than its newest one");
+            }
+        }
+    }
+
+    @Test
+    void watermark() {
+        final Watermark watermark = new Watermark();
+        final long first = watermark.begin(1);
+        final long batch = watermark.begin(3);
+        assertTrue(watermark.timestamp(batch) > watermark.timestamp(first));
+
+        // The newer write is applied first, but stays hidden until the older one is
+        watermark.publish(batch);
+        assertTrue(watermark.visible() < watermark.timestamp(first));
+        watermark.publish(first);
+        assertEquals(watermark.timestamp(batch) + 2, watermark.visible());
+
+        // Slots of the ring are reused once published
+        for (int i = 0; i < 10_000; i++) {
+            final long sequence = watermark.begin(1);
+            watermark.publish(sequence);
+            assertEquals(watermark.timestamp(sequence), watermark.visible());
+        }
+    }
+
+    /**
+     * Get the number of the sorted timestamps not greater than the given one.
+     */
+    private static int upperBound(
+            final long[] timestamps,
+            final long ts) {
+        var left = 0;
+        var right = timestamps.length;
+        while (left < right) {
+            final var mid = (left + right) >>> 1;
+            if (timestamps[mid] <= ts) {
+                left = mid + 1;
+            } else {
+                right = mid;
+            }
+        }
+        return left;
+    }
+
+    private static ByteBuffer randomKey() {
+        final byte[] key = new byte[16];
+        ThreadLocalRandom.current().nextBytes(key);
+        return ByteBuffer.wrap(key);
+    }
+}